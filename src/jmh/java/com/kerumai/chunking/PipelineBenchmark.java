@@ -0,0 +1,97 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.ConfigurationManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a request through the HTTP/1 pipeline (codec, polite handlers and {@link AppHandler}), from the
+ * request bytes in to the response bytes out, on an EmbeddedChannel so that there's no network involved.
+ *
+ * Run with ./gradlew jmh, which also runs the GC profiler so the allocation per request (gc.alloc.rate.norm) is
+ * reported alongside.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark
+{
+    /** The simple page, the clean page, a static asset, and a 404. */
+    @Param({"/", "/clean/", "/clean/css/pixyll.css", "/missing"})
+    public String path;
+
+    private Router router;
+    private EmbeddedChannel channel;
+    private ByteBuf request;
+
+    @Setup
+    public void setup()
+    {
+        // The pages' simulated backend data should be available straight away.
+        ConfigurationManager.getConfigInstance().setProperty("server.chunk.pause", 0);
+        // And everything run on the channel's (embedded) event loop, rather than offloaded.
+        ConfigurationManager.getConfigInstance().setProperty("server.offload.benchmark.threads", 0);
+
+        // The routes first, as they set up how the pages' html is rewritten as it's loaded.
+        AssetCache assetCache = new AssetCache();
+        router = new AppRoutes(assetCache, new OffloadExecutor("benchmark")).router();
+        assetCache.preload("/web");
+
+        Http1Connection connection = new Http1Connection();
+        channel = new EmbeddedChannel(
+                new FlushConsolidator(),
+                new ServerCodec(),
+                new InboundPoliteHTTPHandler(connection),
+                new OutboundPoliteHTTPHandler(connection),
+                new ChunkedWriteHandler(),
+                new AppHandler(router, connection));
+
+        request = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(
+                "GET " + path + " HTTP/1.1\r\n"
+                        + "Host: localhost:7001\r\n"
+                        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+                        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                        + "Accept-Encoding: gzip, deflate\r\n"
+                        + "Connection: keep-alive\r\n"
+                        + "\r\n", StandardCharsets.US_ASCII));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        channel.finish();
+        releaseOutbound(null);
+    }
+
+    @Benchmark
+    public void request(Blackhole bh)
+    {
+        channel.writeInbound(request.duplicate());
+        // Run the pages' fragments, and then the flushes consolidated to the end of the tick they completed in.
+        channel.runPendingTasks();
+        channel.runPendingTasks();
+        releaseOutbound(bh);
+    }
+
+    private void releaseOutbound(Blackhole bh)
+    {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (bh != null && msg instanceof ByteBuf) {
+                bh.consume(((ByteBuf) msg).readableBytes());
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicDoubleProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicStringProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one line per exchange to an access log file, as JSON: the method, uri, protocol, route, status, body bytes
+ * and chunks, time to first byte and total time (both in micros from when the request started being read), and
+ * whether the response was completely written.
+ *
+ * Recording never blocks or does any I/O on the calling thread, which is usually an event loop. Records are copied
+ * into the slots of a preallocated ring buffer, and a background thread takes them off and writes them out in
+ * batches. If the ring is full the record is dropped and counted instead. Only server.accesslog.sample.rate of
+ * successful exchanges are recorded, though server errors and responses that didn't complete always are.
+ *
+ * Turned on with server.accesslog.enabled, writing to server.accesslog.file, which is rolled over once it reaches
+ * server.accesslog.max.bytes, keeping server.accesslog.max.files old ones.
+ */
+public class AccessLog implements Runnable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AccessLog.class);
+    private static final DynamicBooleanProperty ENABLED = new DynamicBooleanProperty("server.accesslog.enabled", false);
+    private static final DynamicStringProperty FILE = new DynamicStringProperty("server.accesslog.file", "logs/access.log");
+    private static final DynamicDoubleProperty SAMPLE_RATE = new DynamicDoubleProperty("server.accesslog.sample.rate", 1.0);
+    private static final DynamicIntProperty RING_SIZE = new DynamicIntProperty("server.accesslog.ring.size", 16 * 1024);
+    private static final DynamicLongProperty MAX_BYTES = new DynamicLongProperty("server.accesslog.max.bytes", 100 * 1024 * 1024);
+    private static final DynamicIntProperty MAX_FILES = new DynamicIntProperty("server.accesslog.max.files", 5);
+    private static final DynamicLongProperty WRITE_INTERVAL_MS = new DynamicLongProperty("server.accesslog.write.interval.ms", 200);
+
+    private static final AtomicLong RECORDED = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    /** The log being written, or null if it's not enabled. */
+    private static volatile AccessLog running = null;
+
+    private final Record[] ring;
+    private final int mask;
+    /** The sequence of the next slot to be claimed by a recording thread. */
+    private final AtomicLong head = new AtomicLong();
+    /** The sequence of the next slot to be written out. Only advanced by the writer thread. */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final Path file;
+    private final Thread thread;
+    private volatile boolean stopping = false;
+
+    /** Only touched by the writer thread. */
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+    private Writer out = null;
+    private long fileBytes = 0;
+    private long droppedReported = 0;
+
+    /**
+     * One exchange, in a slot of the ring. Filled in by the recording thread, and then published by setting the
+     * sequence, after which only the writer thread touches it until it's written out.
+     */
+    private static class Record
+    {
+        volatile long sequence = -1;
+        long timeMillis;
+        String method;
+        String uri;
+        boolean http2;
+        String route;
+        int status;
+        long bytes;
+        int chunks;
+        long ttfbMicros;
+        long totalMicros;
+        boolean complete;
+    }
+
+    private AccessLog(int size, Path file)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.ring = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record();
+        }
+        this.mask = capacity - 1;
+        this.file = file;
+        this.thread = new Thread(this, "AccessLog");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start writing the access log, if it's enabled.
+     */
+    public static synchronized void start()
+    {
+        if (running != null || !ENABLED.get()) {
+            return;
+        }
+        AccessLog log = new AccessLog(RING_SIZE.get(), Paths.get(FILE.get()));
+        log.thread.start();
+        running = log;
+        LOG.info("Writing access log. file=" + log.file.toAbsolutePath() + ", ring_size=" + log.ring.length);
+    }
+
+    /**
+     * Stop recording, and write out whatever has been recorded so far.
+     */
+    public static synchronized void stop()
+    {
+        AccessLog log = running;
+        if (log == null) {
+            return;
+        }
+        running = null;
+        log.stopping = true;
+        LockSupport.unpark(log.thread);
+        try {
+            log.thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record an exchange, if the access log is enabled and it's sampled. All times are System.nanoTime() values.
+     */
+    static void record(HttpExchange exchange, int status, long bytes, int chunks, long startNanos, long firstByteNanos,
+                       long endNanos, boolean complete)
+    {
+        AccessLog log = running;
+        if (log == null) {
+            return;
+        }
+        double sampleRate = SAMPLE_RATE.get();
+        if (complete && status < 500 && sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        long sequence = log.claim();
+        if (sequence < 0) {
+            DROPPED.incrementAndGet();
+            return;
+        }
+        Record record = log.ring[(int) sequence & log.mask];
+        record.timeMillis = System.currentTimeMillis();
+        record.method = exchange.request().method().name();
+        record.uri = exchange.request().uri();
+        record.http2 = exchange.isHttp2();
+        record.route = exchange.route();
+        record.status = status;
+        record.bytes = bytes;
+        record.chunks = chunks;
+        record.ttfbMicros = TimeUnit.NANOSECONDS.toMicros(firstByteNanos - startNanos);
+        record.totalMicros = TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos);
+        record.complete = complete;
+        record.sequence = sequence;
+        RECORDED.incrementAndGet();
+    }
+
+    /**
+     * @return how many exchanges have been recorded.
+     */
+    public static long recorded()
+    {
+        return RECORDED.get();
+    }
+
+    /**
+     * @return how many exchanges have been dropped because the ring was full.
+     */
+    public static long dropped()
+    {
+        return DROPPED.get();
+    }
+
+    /**
+     * @return the sequence of the slot claimed, or -1 if the ring is full.
+     */
+    private long claim()
+    {
+        while (true) {
+            long sequence = head.get();
+            if (sequence - tail.get() >= ring.length) {
+                return -1;
+            }
+            if (head.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            while (true) {
+                boolean stopped = stopping;
+                if (drain() == 0) {
+                    if (stopped) {
+                        break;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WRITE_INTERVAL_MS.get()));
+                }
+            }
+        }
+        finally {
+            close();
+            LOG.info("Stopped writing access log. recorded=" + RECORDED.get() + ", dropped=" + DROPPED.get());
+        }
+    }
+
+    /**
+     * Write out what's been published to the ring since the last time, as a batch.
+     *
+     * @return how many records were written.
+     */
+    private int drain()
+    {
+        long sequence = tail.get();
+        int count = 0;
+        Record record;
+        while ((record = ring[(int) sequence & mask]).sequence == sequence) {
+            append(record);
+            record.method = null;
+            record.uri = null;
+            record.route = null;
+            // Hand the slot back to the recording threads.
+            tail.lazySet(++sequence);
+            count++;
+        }
+
+        long dropped = DROPPED.get();
+        if (dropped != droppedReported) {
+            LOG.warn("Access log records dropped as the ring was full. dropped=" + (dropped - droppedReported)
+                    + ", total_dropped=" + dropped);
+            droppedReported = dropped;
+        }
+
+        if (count > 0) {
+            write();
+        }
+        return count;
+    }
+
+    private void append(Record record)
+    {
+        StringBuilder sb = batch;
+        sb.append("{\"time\":").append(record.timeMillis);
+        sb.append(",\"method\":\"").append(record.method);
+        sb.append("\",\"uri\":\"");
+        appendEscaped(sb, record.uri);
+        sb.append("\",\"protocol\":\"").append(record.http2 ? "h2" : "http/1.1");
+        sb.append("\",\"route\":\"");
+        appendEscaped(sb, record.route);
+        sb.append("\",\"status\":").append(record.status);
+        sb.append(",\"bytes\":").append(record.bytes);
+        sb.append(",\"chunks\":").append(record.chunks);
+        sb.append(",\"ttfb_us\":").append(record.ttfbMicros);
+        sb.append(",\"total_us\":").append(record.totalMicros);
+        sb.append(",\"complete\":").append(record.complete);
+        sb.append("}\n");
+    }
+
+    private static void appendEscaped(StringBuilder sb, String s)
+    {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private void write()
+    {
+        try {
+            if (out == null) {
+                open();
+            }
+            out.append(batch);
+            out.flush();
+            fileBytes += batch.length();
+            if (fileBytes >= MAX_BYTES.get()) {
+                roll();
+            }
+        }
+        catch (IOException e) {
+            LOG.error("Error writing access log, so the batch is lost. file=" + file + ", records_lost="
+                    + countLines(batch), e);
+            close();
+        }
+        finally {
+            batch.setLength(0);
+        }
+    }
+
+    private void open() throws IOException
+    {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+
+    /**
+     * Move the current file out of the way, to file.1, with file.1 moved to file.2 and so on, dropping the oldest.
+     */
+    private void roll() throws IOException
+    {
+        close();
+        int maxFiles = MAX_FILES.get();
+        if (maxFiles <= 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.deleteIfExists(rolled(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = rolled(i);
+            if (Files.exists(from)) {
+                Files.move(from, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rolled(int index)
+    {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void close()
+    {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Error closing access log. file=" + file, e);
+            }
+            out = null;
+        }
+    }
+
+    private static int countLines(CharSequence s)
+    {
+        int lines = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
@@ -1,18 +1,15 @@
 package com.kerumai.chunking;
 
-import com.netflix.config.DynamicLongProperty;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.*;
-import org.apache.commons.io.IOUtils;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
 
 /**
  * User: Mike Smith
@@ -22,177 +19,139 @@ import java.util.concurrent.TimeUnit;
 public class AppHandler extends ChannelInboundHandlerAdapter
 {
     private static final Logger LOG = LoggerFactory.getLogger(AppHandler.class);
-    private static final DynamicLongProperty CHUNK_PAUSE_MS = new DynamicLongProperty("server.chunk.pause", 750);
+
+    private final Router router;
+    private final Http1Connection connection;
     private HttpRequest request = null;
+    private long requestStartNanos = 0;
+    private boolean http2 = false;
+    private FlushConsolidator reads = null;
+
+    /** Streaming bodies waiting for the channel to be writable again. */
+    private final ArrayList<StreamingBody> awaitingWritability = new ArrayList<>(2);
+
+    /**
+     * @param connection the state of the connection while it's HTTP/1, which responses are queued on so they go out
+     * in the order the requests came in.
+     */
+    public AppHandler(Router router, Http1Connection connection)
+    {
+        this.router = router;
+        this.connection = connection;
+    }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
     {
-        if (msg instanceof HttpRequest) {
-            request = (HttpRequest) msg;
-        }
-        else if (msg instanceof LastHttpContent) {
-            try {
-                respond(ctx);
+        try {
+            // Requests from HTTP/2 streams come through as FullHttpRequests, so are both of these.
+            if (msg instanceof HttpRequest) {
+                request = (HttpRequest) msg;
+                requestStartNanos = readStartNanos(ctx);
             }
-            catch (Exception e) {
-                LOG.error("Error during respond. uri=" + request.uri(), e);
-                Utils.sendDefaultErrorResponse(ctx);
+            if (msg instanceof LastHttpContent) {
+                HttpRequest request = this.request;
+                this.request = null;
+                respond(ctx, request, streamId(ctx, request), requestStartNanos);
             }
         }
-        else {
-            // We don't care.
+        finally {
+            // We don't use request bodies.
+            ReferenceCountUtil.release(msg);
         }
     }
 
-    public void respond(ChannelHandlerContext ctx) throws Exception
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
     {
-        if (request.uri().equals("/")) {
-            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html");
-            response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
-            ctx.write(response);
-
-            String firstChunk = "<html><head><title>Chunking Test</title></head><body><p>First Chunk</p>";
-
-            DefaultHttpContent content = new DefaultHttpContent(Unpooled.wrappedBuffer(firstChunk.getBytes()));
-            ctx.writeAndFlush(content);
-
-            ctx.executor().schedule(() -> {
-
-                String secondChunk = "<p>2nd Chunk</p></body></html>";
-                DefaultHttpContent content2 = new DefaultHttpContent(Unpooled.wrappedBuffer(secondChunk.getBytes()));
-                ctx.writeAndFlush(content2);
-
-                ctx.writeAndFlush(new DefaultLastHttpContent());
-
-                request = null;
-
-            }, CHUNK_PAUSE_MS.get(), TimeUnit.MILLISECONDS);
+        if (ctx.channel().isWritable() && !awaitingWritability.isEmpty()) {
+            StreamingBody[] bodies = awaitingWritability.toArray(new StreamingBody[awaitingWritability.size()]);
+            awaitingWritability.clear();
+            for (StreamingBody body : bodies) {
+                body.channelWritabilityChanged();
+            }
         }
+        super.channelWritabilityChanged(ctx);
+    }
 
-        else if (request.uri().equals("/ig-eliminating-roundtrips/")) {
-            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html");
-            response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
-            ctx.write(response);
-
-            ByteBuf firstChunk = readFileAsByteBuf("/web/Eliminating-Roundtrips-with-Preconnect_igvita.com_frag1.html");
-
-            DefaultHttpContent content = new DefaultHttpContent(firstChunk);
-            ctx.writeAndFlush(content);
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        awaitingWritability.clear();
+        super.channelInactive(ctx);
+    }
 
-            ByteBuf secondChunk = readFileAsByteBuf("/web/Eliminating-Roundtrips-with-Preconnect_igvita.com_frag2.html");
-            delayFinalChunk(ctx, secondChunk);
+    /**
+     * Tell the body when the channel is writable again.
+     */
+    void awaitWritability(StreamingBody body)
+    {
+        if (!awaitingWritability.contains(body)) {
+            awaitingWritability.add(body);
         }
+    }
 
-        else if (request.uri().equals("/clean/") || request.uri().startsWith("/clean/?")) {
-            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html");
-
-            ByteBuf firstChunk = readFileAsByteBuf("/web/clean/index_frag1.html");
-            ByteBuf secondChunk = readFileAsByteBuf("/web/clean/index_frag2.html");
-
-            if (request.uri().contains("chunked=false")) {
-                ByteBuf wholePage = Unpooled.wrappedBuffer(firstChunk, secondChunk);
-
-                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, wholePage.capacity());
-                ctx.write(response);
-
-                delayFinalChunk(ctx, wholePage);
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception
+    {
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+            // The connection has been upgraded to HTTP/2, and the request that asked for it is answered on stream 1.
+            HttpServerUpgradeHandler.UpgradeEvent upgrade = (HttpServerUpgradeHandler.UpgradeEvent) evt;
+            try {
+                respond(ctx, upgrade.upgradeRequest(), Http2CodecUtil.HTTP_UPGRADE_STREAM_ID, readStartNanos(ctx));
             }
-            else {
-                response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
-                ctx.write(response);
-
-                DefaultHttpContent content = new DefaultHttpContent(firstChunk);
-                ctx.writeAndFlush(content);
-                delayFinalChunk(ctx, secondChunk);
+            finally {
+                upgrade.release();
             }
         }
-
-        else if (request.uri().startsWith("/ig-eliminating-roundtrips/Eliminating-Roundtrips-with-Preconnect_igvita.com_files/")) {
-            int startIndex = "/ig-eliminating-roundtrips".length();
-            String path = "/web" + request.uri().substring(startIndex);
-            serveFile(ctx, path);
-        }
-
-        else if (request.uri().startsWith("/clean/")) {
-            String path = "/web" + request.uri();
-            serveFile(ctx, path);
-        }
-
-        else if (request.uri().equals("/favicon.ico")) {
-            String path = "/web/clean/favicon.ico";
-            serveFile(ctx, path);
-        }
-
         else {
-            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
-            ctx.write(response);
-            ctx.writeAndFlush(new DefaultLastHttpContent());
+            super.userEventTriggered(ctx, evt);
         }
     }
 
-    private void delayFinalChunk(ChannelHandlerContext ctx, ByteBuf chunk)
-    {
-        ctx.executor().schedule(() -> {
-
-            DefaultHttpContent content2 = new DefaultHttpContent(chunk);
-            ctx.write(content2);
-            ctx.writeAndFlush(new DefaultLastHttpContent());
-
-            request = null;
-
-        }, CHUNK_PAUSE_MS.get(), TimeUnit.MILLISECONDS);
-    }
-
-    private void serveFile(ChannelHandlerContext ctx, String path)
+    /**
+     * @param startNanos when the request started being read, which the exchange is timed from.
+     */
+    public void respond(ChannelHandlerContext ctx, HttpRequest request, int streamId, long startNanos)
     {
-        ByteBuf bb = readFileAsByteBuf(path);
-
-        String contentType = guessContentType(path);
-
-        HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, bb);
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, bb.array().length);
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=60, public");
-
-        ctx.write(response);
-        ctx.writeAndFlush(new DefaultLastHttpContent());
+        HttpExchange exchange = new HttpExchange(ctx, request, streamId, streamId == 0 ? connection : null);
+        exchange.requestDecoded(startNanos);
+        try {
+            RouteHandler handler = router.route(exchange);
+            if (handler == null) {
+                AppRoutes.sendNotFound(exchange);
+            }
+            else {
+                handler.handle(ctx, exchange);
+            }
+        }
+        catch (Exception e) {
+            LOG.error("Error during respond. uri=" + request.uri(), e);
+            Utils.sendDefaultErrorResponse(exchange);
+        }
     }
 
-    private String guessContentType(String path)
+    /**
+     * When the read that the current request was completed in started. The start of a request that's spread across
+     * several reads isn't tracked, as requests without a body nearly always arrive in one.
+     */
+    private long readStartNanos(ChannelHandlerContext ctx)
     {
-        if (path.endsWith(".js")) {
-            return "text/javascript";
+        if (reads == null) {
+            reads = ctx.pipeline().get(FlushConsolidator.class);
         }
-        if (path.endsWith(".css")) {
-            return "text/css";
-        }
-        if (path.endsWith(".webp")) {
-            return "image/webp";
-        }
-        if (path.endsWith(".png")) {
-            return "image/png";
-        }
-        if (path.endsWith(".ico")) {
-            return "image/x-icon";
-        }
-        if (path.endsWith(".woff2")) {
-            return "font/woff2";
-        }
-        return "text/html";
+        return reads == null ? System.nanoTime() : reads.readStartNanos();
     }
 
-    private ByteBuf readFileAsByteBuf(String path)
+    /**
+     * The HTTP/2 stream that a request came in on, or 0 if the connection is HTTP/1.
+     */
+    private int streamId(ChannelHandlerContext ctx, HttpRequest request)
     {
-        try {
-            InputStream input = this.getClass().getResourceAsStream(path);
-            return Unpooled.wrappedBuffer(IOUtils.toByteArray(input));
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
+        // Only trust the stream id header if it was added by our HTTP/2 handlers, rather than sent by an HTTP/1 client.
+        if (!http2) {
+            http2 = ctx.pipeline().get(Http2ResponseWriter.class) != null;
         }
+        return http2 ? request.headers().getInt(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(), 0) : 0;
     }
 }
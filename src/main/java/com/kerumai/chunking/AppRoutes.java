@@ -0,0 +1,544 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicLongProperty;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedNioFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The pages and static assets served by this app, and the routes they're registered at.
+ *
+ * Pages are composed on the event loop, as the composer never blocks, though the fragments read from assets are
+ * read on the offload pool. Static assets are served on the event loop when they're already cached, or can be sent
+ * straight from their file with sendfile. Only reading one into the cache, or opening its file to be read in chunks,
+ * is done on the offload pool.
+ */
+public class AppRoutes
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AppRoutes.class);
+    private static final DynamicLongProperty CHUNK_PAUSE_MS = new DynamicLongProperty("server.chunk.pause", 750);
+
+    private static final String IG_PAGE_PATH = "/ig-eliminating-roundtrips";
+
+    private static final String CACHE_CONTROL = "max-age=60, public";
+    private static final String IMMUTABLE_CACHE_CONTROL = "max-age=31536000, public, immutable";
+    private static final int FILE_CHUNK_SIZE = 8192;
+    private static final Pattern ASSET_URL = Pattern.compile("\\b(href|src)=([\"'])(/[^/\"'?#][^\"'?#]*)\\2");
+
+    private final AssetCache assets;
+    private final PageComposer pageComposer;
+    private final OffloadExecutor offload;
+
+    private final Page simplePage = new Page("simple", "text/html")
+            .fragment(Fragment.text("head", "<html><head><title>Chunking Test</title></head><body><p>First Chunk</p>"))
+            .fragment(Fragment.async("body", simulatedBackendFragment(
+                    Unpooled.unreleasableBuffer(Unpooled.copiedBuffer("<p>2nd Chunk</p></body></html>", StandardCharsets.UTF_8)))));
+
+    private final Page igPage = new Page("ig", "text/html")
+            .fragment(Fragment.asset("head", "/web/Eliminating-Roundtrips-with-Preconnect_igvita.com_frag1.html"))
+            .fragment(Fragment.async("body", simulatedBackendFragment("/web/Eliminating-Roundtrips-with-Preconnect_igvita.com_frag2.html")));
+
+    private final Page cleanPage = new Page("clean", "text/html")
+            .fragment(Fragment.asset("head", "/web/clean/index_frag1.html"))
+            .fragment(Fragment.async("body", simulatedBackendFragment("/web/clean/index_frag2.html"))
+                    .fallback("<p><i>This content is unavailable right now.</i></p></div></div></div></body></html>"));
+
+    /** The clean page again, but with its sections streamed in BigPipe style in whatever order they're ready. */
+    private final Page bigPipePage = new Page("bigpipe", "text/html")
+            .fragment(Fragment.asset("head", "/web/clean/index_frag1.html"))
+            .fragment(Fragment.text("skeleton", "<h3>Latest</h3>" + Page.placeholder("latest")
+                    + "<h3>Popular</h3>" + Page.placeholder("popular")
+                    + "<h3>Recommended</h3>" + Page.placeholder("recommended")))
+            .pagelet(Fragment.async("latest", simulatedBackendFragment("<p>The latest posts.</p>", 2)))
+            .pagelet(Fragment.async("popular", simulatedBackendFragment("<p>The most popular posts.</p>", 1)))
+            .pagelet(Fragment.async("recommended", simulatedBackendFragment("<p>Posts recommended for you.</p>", 2))
+                    .fallback("<p><i>No recommendations right now.</i></p>"))
+            .closing("</div></div></div></body></html>")
+            .maxConcurrentPagelets(2);
+
+    /**
+     * @param offload the pool to run anything that might block on.
+     */
+    public AppRoutes(AssetCache assets, OffloadExecutor offload)
+    {
+        this.assets = assets;
+        this.offload = offload;
+        this.pageComposer = new PageComposer(assets);
+
+        // Before any of the pages' html is loaded.
+        assets.rewriteHtml(this::fingerprintUrls);
+
+        addEarlyHints(igPage);
+        addEarlyHints(cleanPage);
+        addEarlyHints(bigPipePage);
+        assets.onReload(paths -> {
+            for (Page page : new Page[] {igPage, cleanPage, bigPipePage}) {
+                if (paths.contains(page.fragments().get(0).assetPath())) {
+                    addEarlyHints(page);
+                }
+            }
+        });
+    }
+
+    public Router router()
+    {
+        return new Router()
+                .exact("/", this::simplePage)
+                .exact(IG_PAGE_PATH + "/", this::igPage)
+                .exact("/clean/", this::cleanPage)
+                .exact("/bigpipe/", this::bigPipePage)
+                .prefix(IG_PAGE_PATH + "/Eliminating-Roundtrips-with-Preconnect_igvita.com_files/",
+                        (ctx, exchange) -> serveFile(ctx, exchange, "/web" + exchange.path().substring(IG_PAGE_PATH.length())))
+                .prefix("/clean/", (ctx, exchange) -> serveFile(ctx, exchange, "/web" + exchange.path()))
+                .exact("/favicon.ico", (ctx, exchange) -> serveFile(ctx, exchange, "/web/clean/favicon.ico"));
+    }
+
+    private void simplePage(ChannelHandlerContext ctx, HttpExchange exchange)
+    {
+        pageComposer.compose(ctx, exchange, simplePage, true);
+    }
+
+    private void igPage(ChannelHandlerContext ctx, HttpExchange exchange)
+    {
+        pageComposer.compose(ctx, exchange, igPage, true);
+    }
+
+    private void cleanPage(ChannelHandlerContext ctx, HttpExchange exchange)
+    {
+        boolean chunked = !"false".equals(exchange.queryParam("chunked"));
+        pageComposer.compose(ctx, exchange, cleanPage, chunked);
+    }
+
+    private void bigPipePage(ChannelHandlerContext ctx, HttpExchange exchange)
+    {
+        boolean chunked = !"false".equals(exchange.queryParam("chunked"));
+        pageComposer.compose(ctx, exchange, bigPipePage, chunked);
+    }
+
+    /**
+     * Stand-in for a fragment rendered from backend data, which takes server.chunk.pause ms to become available.
+     */
+    private FragmentSource simulatedBackendFragment(String assetPath)
+    {
+        return (ctx, exchange) -> {
+            CompletableFuture<ByteBuf> future = new CompletableFuture<>();
+            ctx.executor().schedule(() -> offload.supply(() -> readAsset(assetPath)).whenComplete((content, error) -> {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                }
+                else {
+                    future.complete(content);
+                }
+            }), CHUNK_PAUSE_MS.get(), TimeUnit.MILLISECONDS);
+            return future;
+        };
+    }
+
+    private FragmentSource simulatedBackendFragment(ByteBuf content)
+    {
+        return (ctx, exchange) -> {
+            CompletableFuture<ByteBuf> future = new CompletableFuture<>();
+            ctx.executor().schedule(() -> future.complete(content.duplicate()), CHUNK_PAUSE_MS.get(), TimeUnit.MILLISECONDS);
+            return future;
+        };
+    }
+
+    /**
+     * Stand-in for a fragment rendered from backend data, which takes the given number of server.chunk.pause
+     * periods to become available.
+     */
+    private FragmentSource simulatedBackendFragment(String html, int pauses)
+    {
+        ByteBuf content = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(html, StandardCharsets.UTF_8));
+        return (ctx, exchange) -> {
+            CompletableFuture<ByteBuf> future = new CompletableFuture<>();
+            ctx.executor().schedule(() -> future.complete(content.duplicate()), pauses * CHUNK_PAUSE_MS.get(), TimeUnit.MILLISECONDS);
+            return future;
+        };
+    }
+
+    static void sendNotFound(HttpExchange exchange)
+    {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        exchange.write(response);
+        exchange.writeAndFlush(new DefaultLastHttpContent());
+    }
+
+    private void serveFile(ChannelHandlerContext ctx, HttpExchange exchange, String path)
+    {
+        // A fingerprinted url is for the same asset, but can be cached forever if the fingerprint is still current.
+        String fingerprint = FingerprintedUrl.fingerprint(path);
+        String assetPath = fingerprint != null ? FingerprintedUrl.strip(path) : path;
+
+        Asset cached = assets.getIfCached(assetPath);
+        if (cached != null) {
+            serveAsset(ctx, exchange, cached, fingerprint);
+            return;
+        }
+
+        // Not cached yet, so it has to be read in, which mustn't hold up the event loop.
+        offload.supply(() -> assets.get(assetPath)).whenCompleteAsync((asset, error) -> {
+            if (error != null) {
+                offloadFailed(exchange, error);
+            }
+            else if (asset == null) {
+                sendNotFound(exchange);
+            }
+            else if (!ctx.channel().isActive()) {
+                // The client gave up while it was waiting.
+                asset.release();
+            }
+            else {
+                serveAsset(ctx, exchange, asset, fingerprint);
+            }
+        }, ctx.executor());
+    }
+
+    /**
+     * Respond with the asset, and release it.
+     */
+    private void serveAsset(ChannelHandlerContext ctx, HttpExchange exchange, Asset asset, String fingerprint)
+    {
+        try {
+            ContentEncoding encoding = asset.negotiateEncoding(exchange.request().headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+            boolean immutable = asset.fingerprint().equals(fingerprint);
+
+            if (ConditionalRequests.isNotModified(exchange.request(), asset.etag(encoding), asset.lastModified())) {
+                FullHttpResponse notModified = responseHead(asset, encoding, immutable, true).newFullResponse(Unpooled.EMPTY_BUFFER);
+                exchange.writeAndFlush(notModified);
+                return;
+            }
+
+            File file = encoding == ContentEncoding.IDENTITY ? asset.file() : null;
+            if (exchange.request().method().equals(HttpMethod.GET)
+                    && exchange.request().headers().contains(HttpHeaderNames.RANGE)
+                    && ConditionalRequests.isRangeCurrent(exchange.request(), asset.etag(encoding), asset.lastModified())) {
+                // Ranges of a file are only worth sending from the file itself if it can be done with sendfile.
+                if (file != null && (exchange.isHttp2() || !AssetFiles.canUseZeroCopy(ctx))) {
+                    file = null;
+                }
+                if (serveRanges(exchange, asset, encoding, immutable, file)) {
+                    return;
+                }
+            }
+
+            ResponseHead head = responseHead(asset, encoding, immutable, false);
+            if (file != null) {
+                writeFileResponse(ctx, exchange, head, asset, file);
+            }
+            else {
+                exchange.writeAndFlush(fullResponse(head, asset, encoding));
+            }
+        }
+        finally {
+            asset.release();
+        }
+    }
+
+    private static void offloadFailed(HttpExchange exchange, Throwable error)
+    {
+        if (error instanceof RejectedExecutionException) {
+            Utils.sendServiceUnavailable(exchange);
+        }
+        else {
+            LOG.error("Error serving asset. uri=" + exchange.request().uri(), error);
+            Utils.sendDefaultErrorResponse(exchange);
+        }
+    }
+
+    /**
+     * Send the ranges of the asset that the request asked for, as a 206 with either just the one range or a
+     * multipart/byteranges body. Each range is a slice of the cached content, or a window of the file if given.
+     *
+     * @return false if the Range header is to be ignored, and the whole asset sent as normal.
+     */
+    private boolean serveRanges(HttpExchange exchange, Asset asset, ContentEncoding encoding, boolean immutable, File file)
+    {
+        ByteBuf content = file == null ? asset.content(encoding) : null;
+        try {
+            long length = file != null ? asset.size() : content.readableBytes();
+            List<ByteRange> ranges = ByteRange.parse(exchange.request().headers().get(HttpHeaderNames.RANGE), length);
+            if (ranges == null) {
+                return false;
+            }
+
+            if (ranges.isEmpty()) {
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                exchange.writeAndFlush(response);
+                return true;
+            }
+
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT);
+            response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            addCachingHeaders(response.headers(), asset, encoding, immutable);
+            if (encoding != ContentEncoding.IDENTITY) {
+                response.headers().set(HttpHeaderNames.CONTENT_ENCODING, encoding.headerValue());
+            }
+
+            if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, asset.contentType());
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, range.contentRange(length));
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, range.length());
+                exchange.write(response);
+                writeRange(exchange, range, content, file);
+                exchange.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                return true;
+            }
+
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+            String[] partHeaders = new String[ranges.size()];
+            String closing = ByteRange.closingDelimiter(boundary);
+            long contentLength = closing.length();
+            for (int i = 0; i < partHeaders.length; i++) {
+                partHeaders[i] = ranges.get(i).partHeader(boundary, asset.contentType(), length);
+                contentLength += partHeaders[i].length() + ranges.get(i).length();
+            }
+
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+            exchange.write(response);
+            for (int i = 0; i < partHeaders.length; i++) {
+                exchange.write(new DefaultHttpContent(Unpooled.copiedBuffer(partHeaders[i], StandardCharsets.US_ASCII)));
+                writeRange(exchange, ranges.get(i), content, file);
+            }
+            exchange.writeAndFlush(new DefaultLastHttpContent(Unpooled.copiedBuffer(closing, StandardCharsets.US_ASCII)));
+            return true;
+        }
+        finally {
+            if (content != null) {
+                content.release();
+            }
+        }
+    }
+
+    private static void writeRange(HttpExchange exchange, ByteRange range, ByteBuf content, File file)
+    {
+        if (file != null) {
+            exchange.write(new DefaultFileRegion(file, range.start(), range.length()));
+        }
+        else {
+            // Equivalent of retainedSlice(), as for Asset.content().
+            ByteBuf slice = content.slice(content.readerIndex() + (int) range.start(), (int) range.length()).retain();
+            exchange.write(new DefaultHttpContent(slice));
+        }
+    }
+
+    /**
+     * @return the head of the responses serving a variant of the asset, either the whole of it or a 304.
+     */
+    private static ResponseHead responseHead(Asset asset, ContentEncoding encoding, boolean immutable, boolean notModified)
+    {
+        int variant = (encoding.ordinal() * 2 + (immutable ? 1 : 0)) * 2 + (notModified ? 1 : 0);
+        ResponseHead head = asset.responseHead(variant);
+        if (head == null) {
+            HttpHeaders headers = new DefaultHttpHeaders();
+            if (!notModified) {
+                headers.set(HttpHeaderNames.CONTENT_TYPE, asset.contentType());
+                headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+                if (encoding != ContentEncoding.IDENTITY) {
+                    headers.set(HttpHeaderNames.CONTENT_ENCODING, encoding.headerValue());
+                }
+            }
+            addCachingHeaders(headers, asset, encoding, immutable);
+            head = new ResponseHead(notModified ? HttpResponseStatus.NOT_MODIFIED : HttpResponseStatus.OK, headers);
+            asset.responseHead(variant, head);
+        }
+        return head;
+    }
+
+    private static void addCachingHeaders(HttpHeaders headers, Asset asset, ContentEncoding encoding, boolean immutable)
+    {
+        headers.set(HttpHeaderNames.CACHE_CONTROL, immutable ? IMMUTABLE_CACHE_CONTROL : CACHE_CONTROL);
+        headers.set(HttpHeaderNames.ETAG, asset.etag(encoding));
+        headers.set(HttpHeaderNames.LAST_MODIFIED, asset.lastModifiedHeader());
+        if (asset.isCompressed()) {
+            headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+    }
+
+    private static FullHttpResponse fullResponse(ResponseHead head, Asset asset, ContentEncoding encoding)
+    {
+        ByteBuf bb = asset.content(encoding);
+        FullHttpResponse response = head.newFullResponse(bb);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, bb.readableBytes());
+        return response;
+    }
+
+    /**
+     * Send the asset from its file rather than from the cache, with sendfile if possible, or otherwise in chunks.
+     */
+    private void writeFileResponse(ChannelHandlerContext ctx, HttpExchange exchange, ResponseHead head, Asset asset,
+                                   File file)
+    {
+        HttpResponse response = head.newResponse();
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, asset.size());
+
+        // HTTP/2 needs the body split into DATA frames, so can't send it straight from the file.
+        if (!exchange.isHttp2() && AssetFiles.canUseZeroCopy(ctx)) {
+            // Zero-copy from the file to the socket with sendfile, which is done without blocking the event loop.
+            exchange.write(response);
+            exchange.write(new DefaultFileRegion(file, 0, asset.size()));
+            exchange.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            return;
+        }
+
+        // Opened before the head is written, so that if it can't be the response can still be an error, or if it's
+        // changed since the asset was loaded the cached content can be sent instead.
+        asset.retain();
+        offload.supply(() -> openFile(asset, file)).whenCompleteAsync((body, error) -> {
+            try {
+                if (error != null) {
+                    offloadFailed(exchange, error);
+                }
+                else if (!ctx.channel().isActive()) {
+                    if (body != null) {
+                        closeQuietly(body);
+                    }
+                }
+                else if (body == null) {
+                    exchange.writeAndFlush(fullResponse(head, asset, ContentEncoding.IDENTITY));
+                }
+                else {
+                    exchange.write(response);
+                    exchange.writeAndFlush(body);
+                }
+            }
+            finally {
+                asset.release();
+            }
+        }, ctx.executor());
+    }
+
+    /**
+     * @return the asset's file to be read in chunks, or null if it no longer holds the asset's content.
+     */
+    private static HttpChunkedInput openFile(Asset asset, File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath());
+        if (!asset.isFileCurrent()) {
+            channel.close();
+            return null;
+        }
+        return new HttpChunkedInput(new ChunkedNioFile(channel, 0, asset.size(), FILE_CHUNK_SIZE));
+    }
+
+    private static void closeQuietly(HttpChunkedInput input)
+    {
+        try {
+            input.close();
+        }
+        catch (Exception e) {
+            LOG.warn("Error closing asset file.", e);
+        }
+    }
+
+    /**
+     * Hint the subresources referenced by the page's first fragment, if it's a static one.
+     */
+    private void addEarlyHints(Page page)
+    {
+        Fragment first = page.fragments().get(0);
+        String html = first.isAsset() ? readAssetString(first.assetPath()) : null;
+        if (html == null) {
+            return;
+        }
+
+        EarlyHints hints = EarlyHints.parse(html, url -> readAssetString(assetPathFor(url)));
+        LOG.info("Early hints for page. fragment=" + first.assetPath() + ", links=" + hints.links());
+        page.earlyHints(hints);
+    }
+
+    /**
+     * Point the same-origin links in some html at the fingerprinted urls of the assets they're for, so that they can
+     * be cached forever. Links to other pages are left alone.
+     */
+    private String fingerprintUrls(String html)
+    {
+        Matcher m = ASSET_URL.matcher(html);
+        StringBuffer sb = new StringBuffer(html.length() + 256);
+        while (m.find()) {
+            String url = m.group(3);
+            Asset asset = url.endsWith("/") || url.endsWith(".html") ? null : assets.get(assetPathFor(url));
+            if (asset == null) {
+                m.appendReplacement(sb, Matcher.quoteReplacement(m.group()));
+                continue;
+            }
+            try {
+                String fingerprinted = FingerprintedUrl.of(url, asset.fingerprint());
+                m.appendReplacement(sb, Matcher.quoteReplacement(m.group(1) + "=" + m.group(2) + fingerprinted + m.group(2)));
+            }
+            finally {
+                asset.release();
+            }
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * The asset that the routes above serve for a url.
+     */
+    private static String assetPathFor(String url)
+    {
+        url = FingerprintedUrl.strip(url);
+        if (url.startsWith(IG_PAGE_PATH + "/")) {
+            return "/web" + url.substring(IG_PAGE_PATH.length());
+        }
+        return "/web" + url;
+    }
+
+    /**
+     * @return the content of an asset as a string, or null if there's no such asset.
+     */
+    private String readAssetString(String path)
+    {
+        Asset asset = assets.get(path);
+        if (asset == null) {
+            return null;
+        }
+
+        ByteBuf content = asset.content();
+        try {
+            return content.toString(StandardCharsets.UTF_8);
+        }
+        finally {
+            content.release();
+            asset.release();
+        }
+    }
+
+    private ByteBuf readAsset(String path)
+    {
+        Asset asset = assets.get(path);
+        if (asset == null) {
+            throw new IllegalStateException("No asset found. path=" + path);
+        }
+
+        try {
+            return asset.content();
+        }
+        finally {
+            asset.release();
+        }
+    }
+}
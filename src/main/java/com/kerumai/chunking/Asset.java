@@ -0,0 +1,257 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderDateFormat;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.AsciiString;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A static asset held in memory by the {@link AssetCache}, along with any precompressed variants of it.
+ *
+ * Assets are reference counted. The cache holds one reference, and every {@link AssetCache#get(String)} hands out
+ * another one which the caller must release once it has finished building its response. Callers get their own
+ * view of the bytes via {@link #content()}, which shares the underlying memory and just bumps the reference count
+ * of the buffer, so an asset can be evicted while responses using it are still being written.
+ *
+ * Each asset has a fingerprint, a hash of its content, which is used for its strong ETags (one per variant, as each is
+ * a different representation) and for its fingerprinted url. These and its Last-Modified date are worked out once
+ * when it's loaded.
+ */
+public class Asset extends AbstractReferenceCounted
+{
+    private final String path;
+    private final String contentType;
+    private final ByteBuf content;
+    private final ByteBuf gzipped;
+    private final ByteBuf brotli;
+    private final DeflateBlock deflateBlock;
+    private final String fingerprint;
+    private final File file;
+    private final long fileModified;
+    /** Set once the file has been seen to change, after which it no longer holds the content. */
+    private volatile boolean fileChanged = false;
+    private final long lastModified;
+    private final String lastModifiedHeader;
+    private final AsciiString[] etags;
+    /** The heads of the responses serving the asset, by variant, built by whoever serves it when first needed. */
+    private final AtomicReferenceArray<ResponseHead> responseHeads = new AtomicReferenceArray<>(ContentEncoding.values().length * 4);
+
+    /**
+     * @param gzipped the gzip variant, or null if this asset isn't worth compressing.
+     * @param brotli the brotli variant, or null if none was built.
+     * @param deflateBlock the content as a standalone deflate block for use as a page fragment, or null if not html.
+     * @param fingerprint a hash of the content, as hex.
+     * @param file the file the content was read from, to be served from in its place, or null if it isn't to be, eg.
+     * because it's small or the content was rewritten.
+     * @param fileModified when the file was last modified as of when it was read, in ms since the epoch.
+     * @param lastModified when the asset was last modified, in ms since the epoch.
+     */
+    public Asset(String path, String contentType, ByteBuf content, ByteBuf gzipped, ByteBuf brotli, DeflateBlock deflateBlock,
+                 String fingerprint, File file, long fileModified, long lastModified)
+    {
+        this.path = path;
+        this.contentType = contentType;
+        this.content = content;
+        this.gzipped = gzipped;
+        this.brotli = brotli;
+        this.deflateBlock = deflateBlock;
+        this.fingerprint = fingerprint;
+        this.file = file;
+        this.fileModified = fileModified;
+
+        // HTTP dates only go down to the second, so compare against the same.
+        this.lastModified = lastModified / 1000 * 1000;
+        this.lastModifiedHeader = HttpHeaderDateFormat.get().format(new Date(this.lastModified));
+
+        this.etags = new AsciiString[ContentEncoding.values().length];
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            String suffix = encoding == ContentEncoding.IDENTITY ? "" : "-" + encoding.headerValue();
+            etags[encoding.ordinal()] = new AsciiString("\"" + fingerprint + suffix + "\"");
+        }
+    }
+
+    public String path()
+    {
+        return path;
+    }
+
+    public String contentType()
+    {
+        return contentType;
+    }
+
+    public int size()
+    {
+        return content.readableBytes();
+    }
+
+    /**
+     * @return the total bytes held for this asset, including all variants.
+     */
+    public int memorySize()
+    {
+        int size = content.readableBytes();
+        if (gzipped != null) {
+            size += gzipped.readableBytes();
+        }
+        if (brotli != null) {
+            size += brotli.readableBytes();
+        }
+        if (deflateBlock != null) {
+            size += deflateBlock.compressedSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return whether there are any compressed variants of this asset, ie. whether responses for it vary on Accept-Encoding.
+     */
+    public boolean isCompressed()
+    {
+        return gzipped != null || brotli != null;
+    }
+
+    public String fingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return the strong ETag (including the quotes) of the specified variant of the content.
+     */
+    public AsciiString etag(ContentEncoding encoding)
+    {
+        return etags[encoding.ordinal()];
+    }
+
+    /**
+     * @return the file holding the same bytes as {@link #content()}, to send instead, or null if there's none. It was
+     * found when the asset was loaded, so serving it needn't touch the filesystem.
+     */
+    public File file()
+    {
+        return fileChanged ? null : file;
+    }
+
+    /**
+     * Stop serving the file in place of the content, as it's changed since it was read.
+     */
+    public void fileChanged()
+    {
+        fileChanged = true;
+    }
+
+    /**
+     * @return whether the file still holds the content, going by its length and when it was last modified. This
+     * touches the filesystem, so isn't for the event loop.
+     */
+    public boolean isFileCurrent()
+    {
+        return file() != null && file.length() == size() && file.lastModified() == fileModified;
+    }
+
+    public long lastModified()
+    {
+        return lastModified;
+    }
+
+    public String lastModifiedHeader()
+    {
+        return lastModifiedHeader;
+    }
+
+    /**
+     * @param variant between 0 and 4 times the number of content encodings.
+     * @return the response head for the variant, or null if there isn't one yet.
+     */
+    public ResponseHead responseHead(int variant)
+    {
+        return responseHeads.get(variant);
+    }
+
+    public void responseHead(int variant, ResponseHead head)
+    {
+        responseHeads.set(variant, head);
+    }
+
+    public ContentEncoding negotiateEncoding(String acceptEncoding)
+    {
+        return ContentEncoding.negotiate(acceptEncoding, brotli != null, gzipped != null);
+    }
+
+    /**
+     * @return a retained duplicate of the content, which the caller is responsible for releasing (normally by
+     * writing it to a channel).
+     */
+    public ByteBuf content()
+    {
+        // Equivalent of ByteBuf.retainedDuplicate(), which this version of netty does not have yet.
+        return content.duplicate().retain();
+    }
+
+    /**
+     * @return a retained duplicate of the specified variant of the content.
+     */
+    public ByteBuf content(ContentEncoding encoding)
+    {
+        switch (encoding) {
+            case BROTLI:
+                return brotli.duplicate().retain();
+            case GZIP:
+                return gzipped.duplicate().retain();
+            default:
+                return content();
+        }
+    }
+
+    public DeflateBlock deflateBlock()
+    {
+        return deflateBlock;
+    }
+
+    @Override
+    public Asset retain()
+    {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public Asset retain(int increment)
+    {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public Asset touch()
+    {
+        return touch(null);
+    }
+
+    @Override
+    public Asset touch(Object hint)
+    {
+        content.touch(hint);
+        return this;
+    }
+
+    @Override
+    protected void deallocate()
+    {
+        content.release();
+        if (gzipped != null) {
+            gzipped.release();
+        }
+        if (brotli != null) {
+            brotli.release();
+        }
+        if (deflateBlock != null) {
+            deflateBlock.release();
+        }
+    }
+}
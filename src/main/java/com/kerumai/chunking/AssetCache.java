@@ -0,0 +1,699 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory cache of the static assets under /web, so that we're not doing blocking reads of them on the event loop
+ * for every request.
+ *
+ * Assets are read from the {@link AssetFiles} directory if there is one, falling back to the classpath for any that
+ * aren't there. They're held in pooled direct buffers, and evicted in roughly LRU order once the total size goes over
+ * server.assets.cache.max.bytes. Anything not already cached is loaded on first use.
+ *
+ * The cached assets are held in an immutable snapshot, which is replaced as a whole whenever any are added, evicted
+ * or reloaded, so reads never take a lock. When files change on disk, the {@link AssetWatcher} has the changed ones
+ * {@link #reload(Collection) reloaded}, all in one new snapshot, so that eg. a page's fragments resolved from the same
+ * {@link Snapshot} are never a mix of old and new.
+ *
+ * Text assets are gzipped when loaded. Brotli variants aren't generated here, but are picked up if the build
+ * put one alongside the asset (eg. /web/clean/script.js.br).
+ *
+ * Html assets can be rewritten as they're loaded, eg. to point them at fingerprinted urls for the assets they use.
+ */
+public class AssetCache
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AssetCache.class);
+    private static final DynamicLongProperty MAX_BYTES = new DynamicLongProperty("server.assets.cache.max.bytes", 64 * 1024 * 1024);
+    private static final DynamicIntProperty MIN_COMPRESS_BYTES = new DynamicIntProperty("server.assets.compress.min.bytes", 256);
+
+    private static final String BROTLI_SUFFIX = ".br";
+    private static final String WEB_PREFIX = "/web/";
+
+    private static final long STARTED_AT = System.currentTimeMillis();
+
+    private final AssetFiles files;
+
+    /** The cached assets. Only replaced while holding the lock on this cache, but read without it. */
+    private volatile Map<String, Entry> entries = Collections.emptyMap();
+    private long totalBytes = 0;
+    private final AtomicLong useCounter = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    private volatile boolean filesWatched = false;
+    private volatile UnaryOperator<String> htmlRewriter = null;
+    private final List<Consumer<Set<String>>> reloadListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * A cache of the assets on the classpath only.
+     */
+    public AssetCache()
+    {
+        this(null);
+    }
+
+    /**
+     * @param files where to read assets from ahead of the classpath, or null for the classpath only.
+     */
+    public AssetCache(AssetFiles files)
+    {
+        this.files = files != null && files.isEnabled() ? files : null;
+    }
+
+    /**
+     * Rewrite the content of html assets as they're loaded. Should be set before any are loaded.
+     */
+    public void rewriteHtml(UnaryOperator<String> rewriter)
+    {
+        this.htmlRewriter = rewriter;
+    }
+
+    /**
+     * Have assets loaded from now on served from their files where worthwhile, as the {@link AssetWatcher} is
+     * watching them and will say when they change. Until then only the cached content is served, as nothing would
+     * notice the files changing underneath it.
+     */
+    public void filesWatched()
+    {
+        this.filesWatched = true;
+    }
+
+    /**
+     * Be told the paths of the assets that have been reloaded, after each reload. Called on the thread doing the
+     * reload.
+     */
+    public void onReload(Consumer<Set<String>> listener)
+    {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Get an asset, loading it if it's not already cached.
+     *
+     * @return the asset with a reference held for the caller (which must be released once done with), or null
+     * if there is no such resource.
+     */
+    public Asset get(String path)
+    {
+        return snapshot().get(path);
+    }
+
+    /**
+     * Get an asset if it's already cached, without loading it, eg. from an event loop that mustn't block on a read.
+     *
+     * @return the asset with a reference held for the caller (which must be released once done with), or null
+     * if it isn't cached.
+     */
+    public Asset getIfCached(String path)
+    {
+        return snapshot().getIfCached(path);
+    }
+
+    /**
+     * @return the assets as currently cached, to get several that should be consistent with each other from.
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(entries);
+    }
+
+    public class Snapshot
+    {
+        private final Map<String, Entry> entries;
+
+        private Snapshot(Map<String, Entry> entries)
+        {
+            this.entries = entries;
+        }
+
+        /**
+         * Get an asset as it was when the snapshot was taken, or failing that load it now.
+         *
+         * @see AssetCache#get(String)
+         */
+        public Asset get(String path)
+        {
+            Asset asset = getIfCached(path);
+            return asset != null ? asset : loadAndCache(path);
+        }
+
+        /**
+         * Get an asset as it was when the snapshot was taken, or failing that as it's cached now, without loading it.
+         *
+         * @see AssetCache#getIfCached(String)
+         */
+        public Asset getIfCached(String path)
+        {
+            Entry entry = entries.get(path);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastUsed = useCounter.incrementAndGet();
+            try {
+                Asset asset = entry.asset.retain();
+                hits.incrementAndGet();
+                return asset;
+            }
+            catch (IllegalReferenceCountException e) {
+                // It's been evicted or replaced since, and nothing else was using it, so go by what's cached now.
+                if (entries == AssetCache.this.entries) {
+                    throw e;
+                }
+                return AssetCache.this.getIfCached(path);
+            }
+        }
+    }
+
+    private Asset loadAndCache(String path)
+    {
+        misses.incrementAndGet();
+        Asset loaded = load(path);
+        if (loaded == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry existing = entries.get(path);
+            if (existing != null) {
+                // Someone else loaded it while we were, so just use theirs.
+                loaded.release();
+                return existing.asset.retain();
+            }
+
+            Map<String, Entry> updated = new HashMap<>(entries);
+            updated.put(path, new Entry(loaded, useCounter.incrementAndGet()));
+            totalBytes += loaded.memorySize();
+            List<Asset> evicted = evictIfNeeded(updated, path);
+            entries = Collections.unmodifiableMap(updated);
+            loaded.retain();
+            evicted.forEach(Asset::release);
+            return loaded;
+        }
+    }
+
+    /**
+     * Load every resource under the specified directory into the cache, from both the assets directory and the
+     * classpath.
+     */
+    public void preload(String root)
+    {
+        long startTime = System.currentTimeMillis();
+        Set<String> paths = new LinkedHashSet<>();
+        if (files != null) {
+            paths.addAll(files.list(root));
+        }
+        paths.addAll(listResources(root));
+        paths.removeIf(path -> path.endsWith(BROTLI_SUFFIX));
+
+        for (String path : paths) {
+            Asset asset = get(path);
+            if (asset != null) {
+                asset.release();
+            }
+        }
+        LOG.info("Preloaded " + paths.size() + " assets from " + root + " in " + (System.currentTimeMillis() - startTime) + " ms. "
+                + "cached_bytes=" + cachedBytes());
+    }
+
+    /**
+     * Reload the assets at the given paths if they're cached, eg. because their files have changed, and drop any
+     * that no longer exist. Assets not yet cached are left to be loaded when they're first used.
+     *
+     * Other assets are reloaded first, and then the html in a second snapshot, as html is rewritten with what it
+     * links to. If any other assets have changed all the cached html is reloaded, for the sake of their fingerprints.
+     */
+    public void reload(Collection<String> paths)
+    {
+        Map<String, Entry> current = entries;
+        Set<String> others = new LinkedHashSet<>();
+        Set<String> html = new LinkedHashSet<>();
+        for (String path : paths) {
+            if (current.containsKey(path)) {
+                (isHtml(path) ? html : others).add(path);
+            }
+        }
+        if (!others.isEmpty()) {
+            for (String path : current.keySet()) {
+                if (isHtml(path)) {
+                    html.add(path);
+                }
+            }
+        }
+
+        Set<String> reloaded = new LinkedHashSet<>();
+        reloaded.addAll(replace(others));
+        reloaded.addAll(replace(html));
+        if (reloaded.isEmpty()) {
+            return;
+        }
+
+        LOG.info("Reloaded assets. paths=" + reloaded);
+        for (Consumer<Set<String>> listener : reloadListeners) {
+            try {
+                listener.accept(reloaded);
+            }
+            catch (Exception e) {
+                LOG.error("Error notifying of reloaded assets.", e);
+            }
+        }
+    }
+
+    /**
+     * Stop serving the assets at the given paths from their files, as they've changed. Until the assets are reloaded
+     * their cached content is served instead.
+     */
+    public void filesChanged(Collection<String> paths)
+    {
+        Map<String, Entry> current = entries;
+        for (String path : paths) {
+            Entry entry = current.get(path);
+            if (entry != null) {
+                entry.asset.fileChanged();
+            }
+        }
+    }
+
+    /**
+     * Stop serving any of the cached assets from their files, eg. because we've lost track of which have changed.
+     */
+    public void allFilesChanged()
+    {
+        for (Entry entry : entries.values()) {
+            entry.asset.fileChanged();
+        }
+    }
+
+    /**
+     * Reload all the cached assets, eg. because we've lost track of which files have changed.
+     */
+    public void reloadAll()
+    {
+        reload(new ArrayList<>(entries.keySet()));
+    }
+
+    /**
+     * Load the assets afresh, outside of the lock, and then swap them all in at once.
+     *
+     * @return the paths of those that were replaced or dropped.
+     */
+    private Set<String> replace(Set<String> paths)
+    {
+        if (paths.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Map<String, Asset> loaded = new HashMap<>();
+        for (String path : paths) {
+            try {
+                loaded.put(path, load(path));
+            }
+            catch (RuntimeException e) {
+                // Eg. caught mid-write, so keep what we've got until the next change.
+                LOG.warn("Unable to reload asset. path=" + path + ", error=" + e);
+            }
+        }
+
+        List<Asset> replaced = new ArrayList<>();
+        synchronized (this) {
+            Map<String, Entry> updated = new HashMap<>(entries);
+            for (Map.Entry<String, Asset> reload : loaded.entrySet()) {
+                Entry old = updated.remove(reload.getKey());
+                if (old != null) {
+                    totalBytes -= old.asset.memorySize();
+                    replaced.add(old.asset);
+                }
+                Asset asset = reload.getValue();
+                if (asset != null) {
+                    // Keeping its place in the LRU order.
+                    updated.put(reload.getKey(), new Entry(asset, old != null ? old.lastUsed : useCounter.incrementAndGet()));
+                    totalBytes += asset.memorySize();
+                }
+            }
+            replaced.addAll(evictIfNeeded(updated, null));
+            entries = Collections.unmodifiableMap(updated);
+        }
+
+        // Anyone still using the old ones has their own reference.
+        replaced.forEach(Asset::release);
+        reloads.addAndGet(loaded.size());
+        return loaded.keySet();
+    }
+
+    public synchronized long cachedBytes()
+    {
+        return totalBytes;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long hits()
+    {
+        return hits.get();
+    }
+
+    public long misses()
+    {
+        return misses.get();
+    }
+
+    public long evictions()
+    {
+        return evictions.get();
+    }
+
+    public long reloads()
+    {
+        return reloads.get();
+    }
+
+    /**
+     * Remove the least recently used entries from the map until the total size is under the limit.
+     *
+     * @param keep an entry to leave even if it alone is over the limit, ie. the one just added.
+     * @return the evicted assets, to be released once the updated map has been published.
+     */
+    private List<Asset> evictIfNeeded(Map<String, Entry> updated, String keep)
+    {
+        long maxBytes = MAX_BYTES.get();
+        if (totalBytes <= maxBytes) {
+            return Collections.emptyList();
+        }
+
+        List<Map.Entry<String, Entry>> byLastUse = new ArrayList<>(updated.entrySet());
+        byLastUse.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+
+        List<Asset> evicted = new ArrayList<>();
+        for (Map.Entry<String, Entry> eldest : byLastUse) {
+            if (totalBytes <= maxBytes || updated.size() <= 1) {
+                break;
+            }
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            updated.remove(eldest.getKey());
+            totalBytes -= eldest.getValue().asset.memorySize();
+            evictions.incrementAndGet();
+            evicted.add(eldest.getValue().asset);
+        }
+        return evicted;
+    }
+
+    private Asset load(String path)
+    {
+        if (path.endsWith("/") || !isAssetPath(path)) {
+            return null;
+        }
+
+        // Looked at before it's read, so that a change while it's being read isn't missed.
+        File file = filesWatched && files != null ? files.find(path) : null;
+        long fileModified = file != null ? file.lastModified() : 0;
+
+        byte[] bytes = read(path);
+        if (bytes == null) {
+            return null;
+        }
+
+        String contentType = guessContentType(path);
+        UnaryOperator<String> rewriter = htmlRewriter;
+        boolean rewritten = rewriter != null && contentType.equals("text/html");
+        if (rewritten) {
+            bytes = rewriter.apply(new String(bytes, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+        }
+
+        ByteBuf gzipped = null;
+        ByteBuf brotli = null;
+        DeflateBlock deflateBlock = null;
+        if (isCompressible(contentType) && bytes.length >= MIN_COMPRESS_BYTES.get()) {
+            byte[] gzippedBytes = GzipStream.gzip(bytes);
+            if (gzippedBytes.length < bytes.length) {
+                gzipped = toDirectBuffer(gzippedBytes);
+            }
+
+            byte[] brotliBytes = read(path + BROTLI_SUFFIX);
+            if (brotliBytes != null) {
+                brotli = toDirectBuffer(brotliBytes);
+            }
+        }
+        if (contentType.equals("text/html")) {
+            deflateBlock = DeflateBlock.compress(bytes, PooledByteBufAllocator.DEFAULT);
+        }
+
+        return new Asset(path, contentType, toDirectBuffer(bytes), gzipped, brotli, deflateBlock,
+                fingerprint(bytes), file != null && isSame(file, fileModified, bytes, rewritten) ? file : null,
+                fileModified, lastModified(path));
+    }
+
+    /**
+     * @return the content of the asset's file, or failing that its classpath resource, or null if there's neither.
+     */
+    private byte[] read(String path)
+    {
+        Path file = files != null ? files.resolve(path) : null;
+        if (file != null && Files.isRegularFile(file)) {
+            try {
+                return Files.readAllBytes(file);
+            }
+            catch (NoSuchFileException e) {
+                // Deleted since we looked, so try the classpath.
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Error loading asset. file=" + file, e);
+            }
+        }
+        return readResource(path);
+    }
+
+    /**
+     * @return whether the file holds the same bytes as will be cached, ie. they weren't rewritten, and it wasn't
+     * changed while being read.
+     */
+    private static boolean isSame(File file, long fileModified, byte[] bytes, boolean rewritten)
+    {
+        return !rewritten && file.length() == bytes.length && file.lastModified() == fileModified;
+    }
+
+    /**
+     * @return whether the path is of something under /web, rather than eg. /web/../log4j.properties, which would
+     * otherwise be read from the classpath.
+     */
+    private static boolean isAssetPath(String path)
+    {
+        if (!path.startsWith(WEB_PREFIX)) {
+            return false;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.equals("..") || segment.equals(".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHtml(String path)
+    {
+        return guessContentType(path).equals("text/html");
+    }
+
+    /**
+     * @return the first 64 bits of the SHA-256 of the content, as hex.
+     */
+    static String fingerprint(byte[] bytes)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available.", e);
+        }
+    }
+
+    /**
+     * @return when the asset's file or resource was last modified, or when the server started if that isn't known.
+     */
+    private long lastModified(String path)
+    {
+        Path file = files != null ? files.resolve(path) : null;
+        if (file != null && Files.isRegularFile(file)) {
+            try {
+                return Files.getLastModifiedTime(file).toMillis();
+            }
+            catch (IOException e) {
+                // Fall back to the classpath resource.
+            }
+        }
+
+        URL url = AssetCache.class.getResource(path);
+        long lastModified = 0;
+        try {
+            if (url != null && "file".equals(url.getProtocol())) {
+                lastModified = Files.getLastModifiedTime(Paths.get(url.toURI())).toMillis();
+            }
+            else if (url != null && "jar".equals(url.getProtocol())) {
+                lastModified = ((JarURLConnection) url.openConnection()).getJarEntry().getTime();
+            }
+        }
+        catch (IOException | URISyntaxException e) {
+            LOG.warn("Unable to get last modified time of asset. path=" + path, e);
+        }
+        return lastModified > 0 ? lastModified : STARTED_AT;
+    }
+
+    private static byte[] readResource(String path)
+    {
+        try (InputStream input = AssetCache.class.getResourceAsStream(path)) {
+            if (input == null) {
+                return null;
+            }
+            return IOUtils.toByteArray(input);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error loading asset. path=" + path, e);
+        }
+    }
+
+    private static ByteBuf toDirectBuffer(byte[] bytes)
+    {
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+        buffer.writeBytes(bytes);
+        return buffer;
+    }
+
+    private static boolean isCompressible(String contentType)
+    {
+        return contentType.startsWith("text/");
+    }
+
+    private static List<String> listResources(String root)
+    {
+        URL url = AssetCache.class.getResource(root);
+        if (url == null) {
+            LOG.warn("No resources found to preload. root=" + root);
+            return new ArrayList<>();
+        }
+
+        try {
+            if ("file".equals(url.getProtocol())) {
+                Path dir = Paths.get(url.toURI());
+                try (Stream<Path> files = Files.walk(dir)) {
+                    return files.filter(Files::isRegularFile)
+                            .filter(file -> !file.toString().endsWith(BROTLI_SUFFIX))
+                            .map(file -> root + "/" + dir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"))
+                            .collect(Collectors.toList());
+                }
+            }
+            else if ("jar".equals(url.getProtocol())) {
+                JarURLConnection conn = (JarURLConnection) url.openConnection();
+                conn.setUseCaches(false);
+                String prefix = root.substring(1) + "/";
+                List<String> paths = new ArrayList<>();
+                try (JarFile jar = conn.getJarFile()) {
+                    Enumeration<JarEntry> jarEntries = jar.entries();
+                    while (jarEntries.hasMoreElements()) {
+                        JarEntry entry = jarEntries.nextElement();
+                        if (!entry.isDirectory() && entry.getName().startsWith(prefix) && !entry.getName().endsWith(BROTLI_SUFFIX)) {
+                            paths.add("/" + entry.getName());
+                        }
+                    }
+                }
+                return paths;
+            }
+            else {
+                LOG.warn("Unable to list resources to preload. url=" + url);
+                return new ArrayList<>();
+            }
+        }
+        catch (IOException | URISyntaxException e) {
+            LOG.error("Error listing resources to preload. root=" + root, e);
+            return new ArrayList<>();
+        }
+    }
+
+    static String guessContentType(String path)
+    {
+        if (path.endsWith(".js")) {
+            return "text/javascript";
+        }
+        if (path.endsWith(".css")) {
+            return "text/css";
+        }
+        if (path.endsWith(".webp")) {
+            return "image/webp";
+        }
+        if (path.endsWith(".png")) {
+            return "image/png";
+        }
+        if (path.endsWith(".jpg") || path.endsWith(".jpeg")) {
+            return "image/jpeg";
+        }
+        if (path.endsWith(".ico")) {
+            return "image/x-icon";
+        }
+        if (path.endsWith(".woff2")) {
+            return "font/woff2";
+        }
+        return "text/html";
+    }
+
+    private static class Entry
+    {
+        private final Asset asset;
+        /** When it was last got from the cache, as a count of gets, for evicting the least recently used. */
+        private volatile long lastUsed;
+
+        Entry(Asset asset, long lastUsed)
+        {
+            this.asset = asset;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicStringProperty;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Locates static assets in an exploded web directory on disk, so that large ones can be streamed straight from the
+ * file with sendfile rather than being copied through user space. The {@link AssetCache} reads assets from here too,
+ * ahead of the classpath, and the {@link AssetWatcher} watches it for changes.
+ *
+ * The directory is server.assets.dir if set, otherwise ${app.dir}/web. If neither exists then file-backed serving is
+ * disabled and everything is served from the {@link AssetCache}.
+ */
+public class AssetFiles
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AssetFiles.class);
+    private static final DynamicStringProperty ASSETS_DIR = new DynamicStringProperty("server.assets.dir", null);
+    private static final DynamicLongProperty MIN_FILE_BYTES = new DynamicLongProperty("server.assets.file.min.bytes", 32 * 1024);
+
+    private static final String WEB_PREFIX = "/web/";
+
+    private final Path root;
+
+    public AssetFiles()
+    {
+        this.root = findRoot();
+        if (root == null) {
+            LOG.info("No assets directory found, so serving all assets from memory.");
+        }
+        else {
+            LOG.info("Serving large assets from directory " + root);
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return root != null;
+    }
+
+    /**
+     * @return the directory, or null if file-backed serving is disabled.
+     */
+    public Path root()
+    {
+        return root;
+    }
+
+    /**
+     * Find the file for an asset path (eg. /web/clean/cover.jpg), if it's big enough to be worth serving from disk.
+     *
+     * @return the file, or null if file-backed serving is disabled, there is no such file, or it's too small.
+     */
+    public File find(String path)
+    {
+        Path file = resolve(path);
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+
+        File f = file.toFile();
+        return f.length() >= MIN_FILE_BYTES.get() ? f : null;
+    }
+
+    /**
+     * @return where the file for an asset path would be, whether or not there is one, or null if file-backed serving
+     * is disabled or the path is outside of the directory.
+     */
+    public Path resolve(String path)
+    {
+        if (root == null || !path.startsWith(WEB_PREFIX)) {
+            return null;
+        }
+
+        // Don't allow escaping the root dir with ../ etc.
+        Path file = root.resolve(path.substring(WEB_PREFIX.length())).normalize();
+        return file.startsWith(root) ? file : null;
+    }
+
+    /**
+     * @return the asset path for a file in the directory, ie. the inverse of {@link #resolve(String)}, or null if
+     * it's outside of the directory.
+     */
+    public String assetPath(Path file)
+    {
+        if (root == null || !file.startsWith(root)) {
+            return null;
+        }
+        return WEB_PREFIX + root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * @return the asset paths of all the files below the given asset directory, eg. /web.
+     */
+    public List<String> list(String dir)
+    {
+        Path start = resolve(dir.endsWith("/") ? dir : dir + "/");
+        if (start == null || !Files.isDirectory(start)) {
+            return Collections.emptyList();
+        }
+
+        try (Stream<Path> files = Files.walk(start)) {
+            return files.filter(Files::isRegularFile).map(this::assetPath).collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            LOG.error("Error listing asset files. dir=" + start, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Whether a FileRegion can be written to this channel as-is. It can't if anything in the pipeline needs to see
+     * the bytes, eg. TLS.
+     */
+    public static boolean canUseZeroCopy(ChannelHandlerContext ctx)
+    {
+        return ctx.pipeline().get(SslHandler.class) == null;
+    }
+
+    private static Path findRoot()
+    {
+        String dir = ASSETS_DIR.get();
+        if (dir == null || dir.isEmpty()) {
+            String appDir = System.getProperty("app.dir");
+            if (appDir == null) {
+                return null;
+            }
+            dir = appDir + "/web";
+        }
+
+        Path path = Paths.get(dir).toAbsolutePath().normalize();
+        return Files.isDirectory(path) ? path : null;
+    }
+}
@@ -0,0 +1,205 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicLongProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches the {@link AssetFiles} directory, and has the {@link AssetCache} reload the assets whose files change, so
+ * that content can be deployed without a restart.
+ *
+ * Changes are gathered up until none have been seen for server.assets.watch.settle.ms, so that the files of a deploy
+ * are all reloaded together, rather than requests seeing some of them updated and not others. Meanwhile, changed files
+ * stop being served in place of what was cached from them straight away. Watching can be turned off with
+ * server.assets.watch, in which case assets are only ever served from the cache.
+ */
+public class AssetWatcher implements Runnable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AssetWatcher.class);
+    private static final DynamicBooleanProperty ENABLED = new DynamicBooleanProperty("server.assets.watch", true);
+    private static final DynamicLongProperty SETTLE_MS = new DynamicLongProperty("server.assets.watch.settle.ms", 100);
+
+    private static final String BROTLI_SUFFIX = ".br";
+
+    private final AssetFiles files;
+    private final AssetCache cache;
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+    private WatchService watchService = null;
+
+    public AssetWatcher(AssetFiles files, AssetCache cache)
+    {
+        this.files = files;
+        this.cache = cache;
+    }
+
+    /**
+     * Start watching on a thread of its own, if there's a directory to watch.
+     */
+    public void start()
+    {
+        if (!files.isEnabled() || !ENABLED.get()) {
+            return;
+        }
+
+        try {
+            watchService = files.root().getFileSystem().newWatchService();
+            watchAll(files.root(), null);
+        }
+        catch (IOException e) {
+            LOG.error("Unable to watch assets directory, so changes won't be picked up. dir=" + files.root(), e);
+            return;
+        }
+
+        Thread thread = new Thread(this, "AssetWatcher");
+        thread.setDaemon(true);
+        thread.start();
+        cache.filesWatched();
+        LOG.info("Watching assets directory for changes. dir=" + files.root());
+    }
+
+    public void stop()
+    {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Error closing assets directory watcher.", e);
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean overflowed = gather(watchService.take(), changed);
+                filesChanged(changed, overflowed);
+
+                // Until things have settled down.
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_MS.get(), TimeUnit.MILLISECONDS)) != null) {
+                    overflowed |= gather(key, changed);
+                    filesChanged(changed, overflowed);
+                }
+
+                if (overflowed) {
+                    LOG.warn("Lost track of changes to assets directory, so reloading everything. dir=" + files.root());
+                    cache.reloadAll();
+                }
+                else {
+                    cache.reload(assetPaths(changed));
+                }
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            LOG.info("Stopped watching assets directory.");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Have the cache stop serving the changed files straight away rather than once things have settled, as they no
+     * longer hold what was cached from them.
+     */
+    private void filesChanged(Set<Path> changed, boolean overflowed)
+    {
+        if (overflowed) {
+            cache.allFilesChanged();
+        }
+        else {
+            cache.filesChanged(assetPaths(changed));
+        }
+    }
+
+    private Set<String> assetPaths(Set<Path> changed)
+    {
+        Set<String> paths = new LinkedHashSet<>();
+        for (Path file : changed) {
+            String path = files.assetPath(file);
+            if (path != null) {
+                // A change to a precompressed variant is a change to its asset.
+                paths.add(path.endsWith(BROTLI_SUFFIX) ? path.substring(0, path.length() - BROTLI_SUFFIX.length()) : path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Add the paths of the files changed in a directory to the set, and watch any new subdirectories.
+     *
+     * @return whether events were lost.
+     */
+    private boolean gather(WatchKey key, Set<Path> changed)
+    {
+        Path dir = dirs.get(key);
+        boolean overflowed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflowed = true;
+                continue;
+            }
+
+            Path file = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)) {
+                try {
+                    watchAll(file, changed);
+                }
+                catch (IOException e) {
+                    LOG.warn("Unable to watch new assets directory. dir=" + file, e);
+                }
+            }
+            else {
+                changed.add(file);
+            }
+        }
+
+        if (!key.reset()) {
+            // The directory has gone, along with anything in it that was cached.
+            dirs.remove(key);
+            overflowed = true;
+        }
+        return overflowed;
+    }
+
+    /**
+     * Watch a directory and everything below it.
+     *
+     * @param found where to add the files already in it, eg. if it's only just been created, or null.
+     */
+    private void watchAll(Path start, Set<Path> found) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(start)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(path)) {
+                    WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    dirs.put(key, path);
+                }
+                else if (found != null) {
+                    found.add(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes asked for by a Range header (RFC 7233), resolved against the length of the representation.
+ */
+public class ByteRange
+{
+    private static final DynamicIntProperty MAX_RANGES = new DynamicIntProperty("server.ranges.max", 16);
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+
+    /**
+     * @param end the last byte in the range, ie. inclusive.
+     */
+    ByteRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long start()
+    {
+        return start;
+    }
+
+    public long length()
+    {
+        return end - start + 1;
+    }
+
+    /**
+     * @return the value of the Content-Range header for this range.
+     */
+    public String contentRange(long totalLength)
+    {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * @return the header of this range's part of a multipart/byteranges body, including the delimiter before it.
+     */
+    public String partHeader(String boundary, String contentType, long totalLength)
+    {
+        return "\r\n--" + boundary + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: " + contentRange(totalLength) + "\r\n"
+                + "\r\n";
+    }
+
+    /**
+     * @return the delimiter that ends a multipart/byteranges body.
+     */
+    public static String closingDelimiter(String boundary)
+    {
+        return "\r\n--" + boundary + "--\r\n";
+    }
+
+    /**
+     * @return the satisfiable ranges in the header, sorted and with any that overlap or are adjacent merged; an
+     * empty list if none of them are satisfiable; or null if the header is to be ignored, as it isn't a valid byte
+     * range set or asks for more ranges than we're prepared to serve.
+     */
+    public static List<ByteRange> parse(String header, long length)
+    {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        int specs = 0;
+        try {
+            for (String spec : header.substring(BYTES_UNIT.length()).split(",")) {
+                spec = spec.trim();
+                if (spec.isEmpty()) {
+                    continue;
+                }
+                if (++specs > MAX_RANGES.get()) {
+                    return null;
+                }
+
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                if (first.isEmpty()) {
+                    // A suffix range, eg. -500 for the last 500 bytes.
+                    long suffixLength = parseDigits(last);
+                    if (suffixLength > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffixLength), length - 1));
+                    }
+                    continue;
+                }
+
+                long start = parseDigits(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : parseDigits(last);
+                if (end < start) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+        return specs == 0 ? null : coalesce(ranges);
+    }
+
+    private static long parseDigits(String s)
+    {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                throw new NumberFormatException("Not a byte position. value=" + s);
+            }
+        }
+        return Long.parseLong(s);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges)
+    {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        ranges.sort(Comparator.comparingLong(ByteRange::start));
+        List<ByteRange> coalesced = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            }
+            else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return Collections.unmodifiableList(coalesced);
+    }
+}
@@ -0,0 +1,98 @@
+package com.kerumai.chunking;
+
+import io.netty.handler.codec.http.HttpHeaderDateFormat;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.AsciiString;
+
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Evaluates a request's If-None-Match and If-Modified-Since preconditions (RFC 7232), to see whether the client's
+ * cached copy is still current and so can be revalidated with a 304 rather than sent again. And its If-Range, to see
+ * whether a partial copy can be completed with the ranges it asked for.
+ */
+public class ConditionalRequests
+{
+    /**
+     * @param etag the strong ETag of the representation that would be sent, including the quotes.
+     * @param lastModified when the representation was last modified, in ms since the epoch, truncated to the second.
+     * @return whether to respond with a 304 Not Modified.
+     */
+    public static boolean isNotModified(HttpRequest request, AsciiString etag, long lastModified)
+    {
+        if (!request.method().equals(HttpMethod.GET) && !request.method().equals(HttpMethod.HEAD)) {
+            return false;
+        }
+
+        // If-None-Match takes precedence, in which case If-Modified-Since is ignored.
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return matchesAny(ifNoneMatch, etag);
+        }
+
+        String ifModifiedSince = request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            try {
+                Date since = HttpHeaderDateFormat.get().parse(ifModifiedSince);
+                return lastModified <= since.getTime();
+            }
+            catch (ParseException e) {
+                // An invalid date is to be ignored.
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param etag the strong ETag of the representation that would be sent, including the quotes.
+     * @param lastModified when the representation was last modified, in ms since the epoch, truncated to the second.
+     * @return whether the Range header is to be honoured, ie. there's no If-Range or it matches the representation.
+     * Otherwise the client's partial copy is out of date, and the whole representation is to be sent.
+     */
+    public static boolean isRangeCurrent(HttpRequest request, AsciiString etag, long lastModified)
+    {
+        String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            // If-Range uses the strong comparison, which a weak tag never matches.
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return etag.contentEquals(ifRange);
+        }
+        try {
+            return HttpHeaderDateFormat.get().parse(ifRange).getTime() == lastModified;
+        }
+        catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * If-None-Match uses the weak comparison, so a W/ prefix on the client's tags doesn't matter.
+     */
+    private static boolean matchesAny(String ifNoneMatch, AsciiString etag)
+    {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (etag.contentEquals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,159 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the server's client connections, so that their number stays bounded and they can be drained on
+ * shutdown. Each connection's pipeline gets its own {@link #newHandler() handler}, after the IdleStateHandler.
+ *
+ * A new connection is closed straight away if there are already server.connections.max open, or
+ * server.connections.max.per.loop on its event loop (if set), or the server is draining. A connection that's been
+ * idle for server.netty.connection.idle.timeout seconds is closed.
+ *
+ * Draining closes every connection politely, ie. through its pipeline, so that HTTP/1 connections are closed once
+ * the responses in flight on them have been written (see {@link OutboundPoliteHTTPHandler}), and HTTP/2 ones after a
+ * GOAWAY once their open streams are done. Any still open after the timeout are closed regardless.
+ */
+public class ConnectionManager
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionManager.class);
+    private static final DynamicIntProperty MAX_CONNECTIONS = new DynamicIntProperty("server.connections.max", 20000);
+    private static final DynamicIntProperty MAX_CONNECTIONS_PER_LOOP = new DynamicIntProperty("server.connections.max.per.loop", 0);
+
+    private final ChannelGroup channels = new DefaultChannelGroup("connections", GlobalEventExecutor.INSTANCE);
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+    private volatile boolean draining = false;
+
+    /** The number of connections on each event loop, only touched from that loop. */
+    private final FastThreadLocal<int[]> loopConnections = new FastThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[1];
+        }
+    };
+
+    /**
+     * @return the handler for a new connection's pipeline.
+     */
+    public ChannelHandler newHandler()
+    {
+        return new ConnectionHandler();
+    }
+
+    public int connections()
+    {
+        return connections.get();
+    }
+
+    public long rejected()
+    {
+        return rejected.get();
+    }
+
+    public long reaped()
+    {
+        return reaped.get();
+    }
+
+    public boolean isDraining()
+    {
+        return draining;
+    }
+
+    /**
+     * Stop admitting connections, and close the open ones once they're done with what they're doing, waiting up to
+     * the timeout for them to close. The server should have stopped accepting connections first.
+     */
+    public void drain(long timeoutMs)
+    {
+        draining = true;
+        LOG.info("Draining connections. open=" + connections.get() + ", timeout_ms=" + timeoutMs);
+
+        ChannelGroupFuture closed = channels.close();
+        if (!closed.awaitUninterruptibly(timeoutMs, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Connections still open after draining, so closing them now. open=" + channels.size());
+            for (Channel channel : channels) {
+                // From the head of the pipeline, so nothing can hold it up.
+                channel.pipeline().firstContext().close();
+            }
+        }
+        LOG.info("Done draining connections.");
+    }
+
+    private class ConnectionHandler extends ChannelInboundHandlerAdapter
+    {
+        private boolean admitted = false;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception
+        {
+            int[] onLoop = loopConnections.get();
+            int maxPerLoop = MAX_CONNECTIONS_PER_LOOP.get();
+            if (draining || (maxPerLoop > 0 && onLoop[0] >= maxPerLoop)) {
+                reject(ctx);
+                return;
+            }
+            if (connections.incrementAndGet() > MAX_CONNECTIONS.get()) {
+                connections.decrementAndGet();
+                reject(ctx);
+                return;
+            }
+
+            admitted = true;
+            onLoop[0]++;
+            channels.add(ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        private void reject(ChannelHandlerContext ctx)
+        {
+            if (rejected.incrementAndGet() % 1000 == 1) {
+                LOG.warn("Rejecting connections over the limit. open=" + connections.get() + ", rejected=" + rejected.get()
+                        + ", draining=" + draining);
+            }
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception
+        {
+            if (admitted) {
+                admitted = false;
+                connections.decrementAndGet();
+                loopConnections.get()[0]--;
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception
+        {
+            if (evt instanceof IdleStateEvent) {
+                // Nothing read or written for a while, so it's just holding on to a file descriptor and buffers.
+                reaped.incrementAndGet();
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.kerumai.chunking;
+
+import io.netty.util.AsciiString;
+
+/**
+ * The content-codings we have precompressed variants of, and the negotiation of which one to send based on
+ * the request's Accept-Encoding header.
+ */
+public enum ContentEncoding
+{
+    BROTLI("br"),
+    GZIP("gzip"),
+    IDENTITY("identity");
+
+    private final AsciiString headerValue;
+
+    ContentEncoding(String headerValue)
+    {
+        this.headerValue = new AsciiString(headerValue);
+    }
+
+    public AsciiString headerValue()
+    {
+        return headerValue;
+    }
+
+    /**
+     * Choose the best encoding out of those available that the client accepts. Where the client accepts several
+     * with the same q-value, we prefer brotli, then gzip, then identity.
+     *
+     * Falls back to identity if the client doesn't accept any of the available encodings (rather than sending a 406).
+     */
+    public static ContentEncoding negotiate(String acceptEncoding, boolean brotliAvailable, boolean gzipAvailable)
+    {
+        if (acceptEncoding == null || acceptEncoding.isEmpty() || !(brotliAvailable || gzipAvailable)) {
+            return IDENTITY;
+        }
+
+        float brQ = -1, gzipQ = -1, identityQ = -1, starQ = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String name = coding;
+            float q = 1.0f;
+
+            int paramsStart = coding.indexOf(';');
+            if (paramsStart > -1) {
+                name = coding.substring(0, paramsStart);
+                q = parseQValue(coding.substring(paramsStart + 1));
+            }
+            name = name.trim();
+
+            if (name.equalsIgnoreCase("br")) {
+                brQ = q;
+            }
+            else if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                gzipQ = q;
+            }
+            else if (name.equalsIgnoreCase("identity")) {
+                identityQ = q;
+            }
+            else if (name.equals("*")) {
+                starQ = q;
+            }
+        }
+
+        // Codings not listed are only acceptable if covered by "*", except identity which is acceptable by default.
+        if (brQ < 0) {
+            brQ = Math.max(starQ, 0);
+        }
+        if (gzipQ < 0) {
+            gzipQ = Math.max(starQ, 0);
+        }
+        if (identityQ < 0) {
+            identityQ = starQ < 0 ? 1.0f : starQ;
+        }
+
+        ContentEncoding best = IDENTITY;
+        float bestQ = identityQ;
+        if (gzipAvailable && gzipQ > 0 && gzipQ >= bestQ) {
+            best = GZIP;
+            bestQ = gzipQ;
+        }
+        if (brotliAvailable && brQ > 0 && brQ >= bestQ) {
+            best = BROTLI;
+        }
+        return best;
+    }
+
+    private static float parseQValue(String params)
+    {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                }
+                catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1.0f;
+    }
+}
@@ -0,0 +1,140 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A piece of content compressed as a raw, sync-flushed deflate block, along with the CRC32 and length
+ * of the uncompressed bytes.
+ *
+ * Because each block ends on a byte boundary and is never marked final, blocks that were compressed
+ * independently can be concatenated into a single gzip stream by a {@link GzipStream}. This lets us
+ * precompress each page fragment once, and still send each one as its own flushable chunk.
+ */
+public class DeflateBlock
+{
+    /** For compressing dynamic content per-request, so use a faster level and reuse the native zlib state. */
+    private static final FastThreadLocal<Deflater> DYNAMIC_DEFLATER = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private final ByteBuf data;
+    private final int crc;
+    private final int length;
+
+    private DeflateBlock(ByteBuf data, int crc, int length)
+    {
+        this.data = data;
+        this.crc = crc;
+        this.length = length;
+    }
+
+    public static DeflateBlock compress(byte[] bytes, ByteBufAllocator alloc)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        byte[] compressed = deflate(bytes, true);
+        ByteBuf data = alloc.directBuffer(compressed.length);
+        data.writeBytes(compressed);
+        return new DeflateBlock(data, (int) crc.getValue(), bytes.length);
+    }
+
+    /**
+     * Compress dynamically generated content, eg. a fragment built for one response. The content is not released.
+     */
+    public static DeflateBlock compress(ByteBuf content, ByteBufAllocator alloc)
+    {
+        byte[] bytes = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        Deflater deflater = DYNAMIC_DEFLATER.get();
+        try {
+            deflater.setInput(bytes);
+            byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+            ByteBuf data = alloc.directBuffer(buffer.length);
+            while (true) {
+                int count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                data.writeBytes(buffer, 0, count);
+                if (count < buffer.length) {
+                    break;
+                }
+            }
+            return new DeflateBlock(data, (int) crc.getValue(), bytes.length);
+        }
+        finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Deflate the bytes with no zlib/gzip wrapper. If syncFlush is set, the output is left unfinished and
+     * byte-aligned so that more blocks can follow it, otherwise it's a complete deflate stream.
+     */
+    static byte[] deflate(byte[] bytes, boolean syncFlush)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            if (!syncFlush) {
+                deflater.finish();
+            }
+
+            byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+            ByteArrayOutputStream out = new ByteArrayOutputStream(buffer.length);
+            while (true) {
+                int count = syncFlush
+                        ? deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)
+                        : deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+
+                // A sync flush is complete once it no longer fills the whole output buffer.
+                if (syncFlush ? count < buffer.length : deflater.finished()) {
+                    break;
+                }
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /** @return a retained duplicate of the compressed bytes. */
+    public ByteBuf data()
+    {
+        return data.duplicate().retain();
+    }
+
+    public int crc()
+    {
+        return crc;
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    public int compressedSize()
+    {
+        return data.readableBytes();
+    }
+
+    void release()
+    {
+        data.release();
+    }
+}
@@ -0,0 +1,197 @@
+package com.kerumai.chunking;
+
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The subresources that the head of a page references (stylesheets, scripts, fonts and preconnects), as Link headers.
+ *
+ * They're sent in a 103 Early Hints response before the real response head, so that the browser can start fetching
+ * them while the page is still being put together, and also added to the real response head. They're parsed out of
+ * the page's html once up front, so nothing is parsed per request.
+ */
+public class EarlyHints
+{
+    public static final EarlyHints NONE = new EarlyHints(Collections.emptyList());
+
+    public static final AsciiString LINK = new AsciiString("link");
+    public static final HttpResponseStatus EARLY_HINTS = new HttpResponseStatus(103, "Early Hints");
+
+    private static final Pattern TAG = Pattern.compile("<(link|script)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile("([\\w-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))");
+    private static final Pattern FONT_URL = Pattern.compile("url\\(\\s*['\"]?([^'\")]+\\.(?:woff2?|ttf|otf))['\"]?\\s*\\)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final List<String> links;
+    private final AsciiString headerValue;
+
+    private EarlyHints(List<String> links)
+    {
+        this.links = Collections.unmodifiableList(links);
+        this.headerValue = links.isEmpty() ? null : new AsciiString(String.join(", ", links));
+    }
+
+    /**
+     * Find the subresources referenced by some html.
+     *
+     * @param stylesheets loads the content of a same-origin stylesheet from its url, so that the fonts it uses can be
+     *                    hinted too. Returns null if it's not available.
+     */
+    public static EarlyHints parse(String html, Function<String, String> stylesheets)
+    {
+        Set<String> links = new LinkedHashSet<>();
+
+        Matcher tag = TAG.matcher(html);
+        while (tag.find()) {
+            String name = tag.group(1).toLowerCase();
+            List<String> attrs = attributes(tag.group(2));
+
+            if (name.equals("script")) {
+                String src = attr(attrs, "src");
+                if (src != null) {
+                    links.add(preload(src, "script"));
+                }
+                continue;
+            }
+
+            String rel = attr(attrs, "rel");
+            String href = attr(attrs, "href");
+            if (rel == null || href == null) {
+                continue;
+            }
+            switch (rel.toLowerCase()) {
+                case "stylesheet":
+                    links.add(preload(href, "style"));
+                    if (isSameOrigin(href)) {
+                        String css = stylesheets.apply(href);
+                        if (css != null) {
+                            addFonts(links, css, href);
+                        }
+                    }
+                    break;
+                case "preconnect":
+                    links.add("<" + href + ">; rel=preconnect");
+                    break;
+                case "preload":
+                    String as = attr(attrs, "as");
+                    if (as != null) {
+                        links.add(as.equalsIgnoreCase("font") ? preloadFont(href) : preload(href, as));
+                    }
+                    break;
+                default:
+                    // Not something worth fetching early.
+            }
+        }
+
+        // Fonts from any inline styles.
+        addFonts(links, html, null);
+
+        return links.isEmpty() ? NONE : new EarlyHints(new ArrayList<>(links));
+    }
+
+    public boolean isEmpty()
+    {
+        return links.isEmpty();
+    }
+
+    public List<String> links()
+    {
+        return links;
+    }
+
+    /**
+     * @return a new 103 Early Hints response. It's a full response, so that the HTTP/1 encoder is ready for the real
+     * response head after it.
+     */
+    public FullHttpResponse newInterimResponse()
+    {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, EARLY_HINTS);
+        addTo(response.headers());
+        return response;
+    }
+
+    public void addTo(HttpHeaders headers)
+    {
+        if (headerValue != null) {
+            headers.set(LINK, headerValue);
+        }
+    }
+
+    /**
+     * Whether the client understands interim responses. HTTP/1.0 ones don't.
+     */
+    public static boolean canSendTo(HttpRequest request)
+    {
+        return !request.protocolVersion().equals(HttpVersion.HTTP_1_0);
+    }
+
+    /**
+     * @param base the url of the stylesheet, that relative font urls are relative to. Or null for inline styles, in
+     *             which case only absolute ones are used.
+     */
+    private static void addFonts(Set<String> links, String css, String base)
+    {
+        Matcher m = FONT_URL.matcher(css);
+        while (m.find()) {
+            String url = m.group(1).trim();
+            if (!url.startsWith("/") && !url.contains("://")) {
+                if (base == null) {
+                    continue;
+                }
+                url = URI.create(base).resolve(url).toString();
+            }
+            links.add(preloadFont(url));
+        }
+    }
+
+    private static String preload(String url, String as)
+    {
+        return "<" + url + ">; rel=preload; as=" + as;
+    }
+
+    private static String preloadFont(String url)
+    {
+        // Fonts are always fetched in cors mode, so the preload has to be too for the browser to use it.
+        return preload(url, "font") + "; crossorigin";
+    }
+
+    private static boolean isSameOrigin(String url)
+    {
+        return url.startsWith("/") && !url.startsWith("//");
+    }
+
+    /**
+     * @return the attributes of a tag as a flat list of name, value pairs.
+     */
+    private static List<String> attributes(String tagBody)
+    {
+        List<String> attrs = new ArrayList<>(8);
+        Matcher m = ATTRIBUTE.matcher(tagBody);
+        while (m.find()) {
+            String value = m.group(2) != null ? m.group(2) : m.group(3) != null ? m.group(3) : m.group(4);
+            attrs.add(m.group(1).toLowerCase());
+            attrs.add(value.trim());
+        }
+        return attrs;
+    }
+
+    private static String attr(List<String> attrs, String name)
+    {
+        for (int i = 0; i < attrs.size(); i += 2) {
+            if (attrs.get(i).equals(name)) {
+                return attrs.get(i + 1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package com.kerumai.chunking;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Urls with an asset's fingerprint in the file name, eg. /clean/css/pixyll.3f2a9c1b5d7e8f60.css, which can be cached
+ * forever as the url changes whenever the content does.
+ */
+public class FingerprintedUrl
+{
+    private static final Pattern FINGERPRINTED = Pattern.compile("^(.*/[^/]*?)\\.([0-9a-f]{16})((?:\\.[^./]*)?)$");
+
+    /**
+     * @return the url with the fingerprint added before the file extension (if any).
+     */
+    public static String of(String url, String fingerprint)
+    {
+        int slash = url.lastIndexOf('/');
+        int dot = url.lastIndexOf('.');
+        if (dot <= slash) {
+            return url + "." + fingerprint;
+        }
+        return url.substring(0, dot) + "." + fingerprint + url.substring(dot);
+    }
+
+    /**
+     * @return the fingerprint in the url, or null if it isn't fingerprinted.
+     */
+    public static String fingerprint(String url)
+    {
+        Matcher m = FINGERPRINTED.matcher(url);
+        return m.matches() ? m.group(2) : null;
+    }
+
+    /**
+     * @return the url without its fingerprint, or as is if it doesn't have one.
+     */
+    public static String strip(String url)
+    {
+        Matcher m = FINGERPRINTED.matcher(url);
+        return m.matches() ? m.group(1) + m.group(3) : url;
+    }
+}
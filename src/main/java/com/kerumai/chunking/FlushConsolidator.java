@@ -0,0 +1,137 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicBooleanProperty;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Combines the flushes made on a connection within one event loop tick into a single flush, and so a single write
+ * syscall where possible.
+ *
+ * While requests are being read, any flushes are held until the read is complete, so that the responses to a batch
+ * of pipelined requests (or HTTP/2 streams) go out together. Otherwise a flush is done at the end of the current
+ * tick, unless the application has written {@link #EARLY_FLUSH} first, in which case it's done straight away. An early
+ * flush boundary is never held past the current tick.
+ *
+ * Should be the first handler in the pipeline. As such it also notes when each read starts, which requests are timed
+ * from.
+ */
+public class FlushConsolidator extends ChannelDuplexHandler
+{
+    private static final DynamicBooleanProperty CONSOLIDATE_OUTSIDE_READ = new DynamicBooleanProperty("server.netty.flush.consolidate", true);
+
+    /**
+     * Write this ahead of a flush to make it an early flush boundary, ie. to have the flush done immediately rather
+     * than at the end of the tick. It's not passed on any further.
+     */
+    public static final Object EARLY_FLUSH = new Object() {
+        @Override
+        public String toString()
+        {
+            return "EARLY_FLUSH";
+        }
+    };
+
+    private boolean readInProgress = false;
+    private boolean flushPending = false;
+    private boolean flushScheduled = false;
+    private boolean flushNow = false;
+    private Runnable flushTask = null;
+    private long readStartNanos = 0;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (!readInProgress) {
+            readInProgress = true;
+            readStartNanos = System.nanoTime();
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception
+    {
+        // Let the rest of the pipeline have its say first, as the HTTP/2 handler flushes on read complete too.
+        ctx.fireChannelReadComplete();
+        readInProgress = false;
+        flushIfPending(ctx);
+    }
+
+    /**
+     * @return the System.nanoTime() when the current (or last) read from the socket started.
+     */
+    public long readStartNanos()
+    {
+        return readStartNanos;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (msg == EARLY_FLUSH) {
+            flushNow = true;
+            promise.trySuccess();
+            return;
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception
+    {
+        boolean early = flushNow;
+        flushNow = false;
+
+        if (readInProgress) {
+            // Will be flushed once the read is complete.
+            flushPending = true;
+        }
+        else if (early || !CONSOLIDATE_OUTSIDE_READ.get()) {
+            flushPending = false;
+            ctx.flush();
+        }
+        else {
+            flushPending = true;
+            if (!flushScheduled) {
+                flushScheduled = true;
+                if (flushTask == null) {
+                    flushTask = () -> {
+                        flushScheduled = false;
+                        flushIfPending(ctx);
+                    };
+                }
+                ctx.executor().execute(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception
+    {
+        flushIfPending(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception
+    {
+        flushIfPending(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        flushIfPending(ctx);
+    }
+
+    private void flushIfPending(ChannelHandlerContext ctx)
+    {
+        if (flushPending) {
+            flushPending = false;
+            ctx.flush();
+        }
+    }
+}
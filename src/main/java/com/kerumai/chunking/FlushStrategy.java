@@ -0,0 +1,202 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import io.netty.channel.Channel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when the chunks of a streamed page are flushed to the client, ie. how much goes in each flush and so in
+ * each burst of packets.
+ *
+ * The {@link PageComposer} asks after every chunk it writes. Each page's strategy is chosen by
+ * server.page.[name].flush.strategy, or failing that the page's own default or server.page.flush.strategy, and is
+ * looked up afresh for every response so can be changed live. The strategies are:
+ *
+ * fragment - flush at each fragment boundary where nothing more is ready to write. The default.
+ * bytes - flush once server.page.[name].flush.bytes have been written since the last flush.
+ * idle - flush once nothing more has been written for server.page.[name].flush.idle.ms.
+ * adaptive - flush once a congestion window's worth has been written, as more would have to wait a round trip
+ * anyway, otherwise wait for more for up to half a round trip. Both are measured from the connection when it's
+ * using the native epoll transport.
+ *
+ * The end of the page is always flushed straight away, as is what's been written when the page is paused for
+ * backpressure.
+ */
+public interface FlushStrategy
+{
+    /** Don't flush yet, but hold on to what's been written until more is. */
+    long HOLD = -1;
+
+    /**
+     * @param unflushedBytes how much of the body has been written since the last flush.
+     * @param moreReady whether the next chunk is ready to be written straight away.
+     * @return how long to wait in ms for more to be written before flushing, 0 to flush now, or {@link #HOLD}.
+     */
+    long flushDelayMs(Channel channel, long unflushedBytes, boolean moreReady);
+
+    /**
+     * @return the strategy configured for the page, or its default.
+     */
+    static FlushStrategy forPage(Page page)
+    {
+        return Config.forPage(page);
+    }
+
+    class FragmentBoundary implements FlushStrategy
+    {
+        @Override
+        public long flushDelayMs(Channel channel, long unflushedBytes, boolean moreReady)
+        {
+            return moreReady ? HOLD : 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "fragment";
+        }
+    }
+
+    class AfterBytes implements FlushStrategy
+    {
+        private final long bytes;
+
+        public AfterBytes(long bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long flushDelayMs(Channel channel, long unflushedBytes, boolean moreReady)
+        {
+            return unflushedBytes >= bytes ? 0 : HOLD;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "bytes(" + bytes + ")";
+        }
+    }
+
+    class AfterIdle implements FlushStrategy
+    {
+        private final long idleMs;
+
+        public AfterIdle(long idleMs)
+        {
+            this.idleMs = idleMs;
+        }
+
+        @Override
+        public long flushDelayMs(Channel channel, long unflushedBytes, boolean moreReady)
+        {
+            return moreReady ? HOLD : idleMs;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "idle(" + idleMs + "ms)";
+        }
+    }
+
+    class Adaptive implements FlushStrategy
+    {
+        /** What's assumed when the connection can't be measured, ie. a 10 segment initial window and a mobile rtt. */
+        private static final long DEFAULT_WINDOW_BYTES = 10 * 1460;
+        private static final long DEFAULT_RTT_MICROS = 100_000;
+
+        private final long maxWaitMs;
+
+        public Adaptive(long maxWaitMs)
+        {
+            this.maxWaitMs = maxWaitMs;
+        }
+
+        @Override
+        public long flushDelayMs(Channel channel, long unflushedBytes, boolean moreReady)
+        {
+            long windowBytes = DEFAULT_WINDOW_BYTES;
+            long rttMicros = DEFAULT_RTT_MICROS;
+            if (channel instanceof EpollSocketChannel) {
+                EpollTcpInfo info = ((EpollSocketChannel) channel).tcpInfo();
+                if (info.sndCwnd() > 0 && info.sndMss() > 0) {
+                    // What can be sent now without waiting for acks.
+                    windowBytes = Math.max(info.sndMss(), (info.sndCwnd() - info.unacked()) * info.sndMss());
+                }
+                if (info.rtt() > 0) {
+                    rttMicros = info.rtt();
+                }
+            }
+
+            if (unflushedBytes >= windowBytes) {
+                return 0;
+            }
+            if (moreReady) {
+                return HOLD;
+            }
+            return Math.min(maxWaitMs, rttMicros / 2000);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "adaptive";
+        }
+    }
+
+    /**
+     * Reads the strategies' properties.
+     */
+    final class Config
+    {
+        private static final Logger LOG = LoggerFactory.getLogger(FlushStrategy.class);
+
+        private static final String PREFIX = "server.page.";
+        private static final DynamicStringProperty STRATEGY = new DynamicStringProperty(PREFIX + "flush.strategy", null);
+        private static final DynamicLongProperty BYTES = new DynamicLongProperty(PREFIX + "flush.bytes", 10 * 1460);
+        private static final DynamicLongProperty IDLE_MS = new DynamicLongProperty(PREFIX + "flush.idle.ms", 50);
+        private static final DynamicIntProperty ADAPTIVE_MAX_WAIT_MS = new DynamicIntProperty(PREFIX + "flush.adaptive.max.wait.ms", 100);
+
+        private static final FlushStrategy FRAGMENT_BOUNDARY = new FragmentBoundary();
+
+        private Config()
+        {
+        }
+
+        static FlushStrategy forPage(Page page)
+        {
+            DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+            String prefix = PREFIX + page.name() + ".flush.";
+
+            String name = properties.getStringProperty(prefix + "strategy", null).get();
+            if (name == null) {
+                if (STRATEGY.get() == null && page.flushStrategy() != null) {
+                    return page.flushStrategy();
+                }
+                name = STRATEGY.get() == null ? "fragment" : STRATEGY.get();
+            }
+
+            switch (name) {
+                case "fragment":
+                    return FRAGMENT_BOUNDARY;
+                case "bytes":
+                    return new AfterBytes(properties.getLongProperty(prefix + "bytes", BYTES.get()).get());
+                case "idle":
+                    return new AfterIdle(properties.getLongProperty(prefix + "idle.ms", IDLE_MS.get()).get());
+                case "adaptive":
+                    return new Adaptive(properties.getIntProperty(prefix + "adaptive.max.wait.ms", ADAPTIVE_MAX_WAIT_MS.get()).get());
+                default:
+                    LOG.warn("Unknown flush strategy, so flushing at fragment boundaries. page=" + page.name() + ", strategy=" + name);
+                    return FRAGMENT_BOUNDARY;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One piece of a {@link Page}. Either a static asset, which is always available straight away, or content produced
+ * asynchronously per request by a {@link FragmentSource}.
+ *
+ * Asynchronous fragments have a timeout, after which the fallback content is sent in their place so that the rest
+ * of the page isn't held up. A timeout of zero or less means use the server.page.fragment.timeout default.
+ */
+public class Fragment
+{
+    private final String name;
+    private final String assetPath;
+    private final FragmentSource source;
+    private long timeoutMs = 0;
+    private byte[] fallback = new byte[0];
+
+    private Fragment(String name, String assetPath, FragmentSource source)
+    {
+        this.name = name;
+        this.assetPath = assetPath;
+        this.source = source;
+    }
+
+    /** A fragment served from the {@link AssetCache}, and so can use its precompressed variant. */
+    public static Fragment asset(String name, String assetPath)
+    {
+        return new Fragment(name, assetPath, null);
+    }
+
+    public static Fragment async(String name, FragmentSource source)
+    {
+        return new Fragment(name, null, source);
+    }
+
+    public static Fragment text(String name, String html)
+    {
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        return async(name, (ctx, exchange) -> CompletableFuture.completedFuture(Unpooled.wrappedBuffer(bytes)));
+    }
+
+    public Fragment timeout(long timeoutMs)
+    {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    public Fragment fallback(String html)
+    {
+        this.fallback = html.getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    public boolean isAsset()
+    {
+        return assetPath != null;
+    }
+
+    public String assetPath()
+    {
+        return assetPath;
+    }
+
+    public FragmentSource source()
+    {
+        return source;
+    }
+
+    public long timeoutMs()
+    {
+        return timeoutMs;
+    }
+
+    public ByteBuf fallback()
+    {
+        return Unpooled.wrappedBuffer(fallback);
+    }
+}
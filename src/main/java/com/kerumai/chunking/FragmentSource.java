@@ -0,0 +1,15 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Produces the content of a page {@link Fragment} for one request, eg. by calling a backend service and rendering
+ * the result. The returned future may be completed on any thread.
+ */
+public interface FragmentSource
+{
+    CompletableFuture<ByteBuf> produce(ChannelHandlerContext ctx, HttpExchange exchange);
+}
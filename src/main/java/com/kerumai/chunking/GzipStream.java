@@ -0,0 +1,154 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Stitches precompressed {@link DeflateBlock}s together into a single gzip stream, one flushable chunk per block.
+ *
+ * The first chunk gets the gzip header prepended, and {@link #finish()} gives the final (empty) deflate block and the
+ * gzip trailer. The trailer's CRC32 is combined from the CRCs of the individual blocks, so the uncompressed
+ * content never needs to be looked at again.
+ *
+ * One of these is used per response, so is not thread-safe.
+ */
+public class GzipStream
+{
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] FINAL_EMPTY_BLOCK = {0x03, 0x00};
+
+    private boolean started = false;
+    private int crc = 0;
+    private long length = 0;
+
+    /**
+     * @return the next chunk of the gzip stream, which the caller is responsible for releasing.
+     */
+    public ByteBuf encode(DeflateBlock block)
+    {
+        crc = combine(crc, block.crc(), block.length());
+        length += block.length();
+
+        ByteBuf header = header();
+        return header == null ? block.data() : Unpooled.wrappedBuffer(header, block.data());
+    }
+
+    /**
+     * @return the end of the gzip stream, which the caller is responsible for releasing.
+     */
+    public ByteBuf finish()
+    {
+        ByteBuf trailer = Unpooled.buffer(FINAL_EMPTY_BLOCK.length + 8);
+        trailer.writeBytes(FINAL_EMPTY_BLOCK);
+        trailer.writeIntLE(crc);
+        trailer.writeIntLE((int) length);
+
+        ByteBuf header = header();
+        return header == null ? trailer : Unpooled.wrappedBuffer(header, trailer);
+    }
+
+    private ByteBuf header()
+    {
+        if (started) {
+            return null;
+        }
+        started = true;
+        return Unpooled.wrappedBuffer(HEADER);
+    }
+
+    /**
+     * Gzip the whole of the supplied bytes in one go.
+     */
+    public static byte[] gzip(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        byte[] deflated = DeflateBlock.deflate(bytes, false);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER.length + deflated.length + 8);
+        out.write(HEADER, 0, HEADER.length);
+        out.write(deflated, 0, deflated.length);
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, bytes.length);
+        return out.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value)
+    {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * Combine the CRC32 of two sequences of bytes into the CRC32 of their concatenation, without needing the bytes
+     * themselves. This is a port of crc32_combine() from zlib.
+     */
+    static int combine(int crc1, int crc2, long len2)
+    {
+        if (len2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // Operator for one zero bit.
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Operators for two and then four zero bits.
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // Apply len2 zeros to crc1 (the first square puts the operator for one zero byte, eight zero bits, in even).
+        long crc = crc1 & 0xffffffffL;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return (int) (crc ^ (crc2 & 0xffffffffL));
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec)
+    {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat)
+    {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayDeque;
+
+/**
+ * The state of an HTTP/1 connection, shared by the handlers in its pipeline rather than kept in channel attributes.
+ * Only ever used from the connection's event loop.
+ *
+ * HTTP/1.1 requests can be pipelined, ie. sent without waiting for the responses to the earlier ones, but the
+ * responses must go back in the same order. So each request's {@link HttpExchange} is queued here, and while they're
+ * all handled as soon as they're read, only the one at the head of the queue writes to the channel. The others hold
+ * on to what they write until it's their turn. No more than server.http1.pipelining.depth requests are in flight at
+ * once, after which the {@link InboundPoliteHTTPHandler} stops reading until earlier ones have completed.
+ */
+public class Http1Connection
+{
+    private static final DynamicIntProperty PIPELINING_DEPTH = new DynamicIntProperty("server.http1.pipelining.depth", 16);
+
+    private final ArrayDeque<HttpExchange> exchanges = new ArrayDeque<>();
+    private int inFlight = 0;
+    private HttpRequest lastRequest = null;
+    private boolean closed = false;
+    private Runnable completionListener = null;
+
+    /**
+     * A request has been read, and will be handled.
+     */
+    void requestReceived(HttpRequest request)
+    {
+        lastRequest = request;
+        inFlight++;
+    }
+
+    /**
+     * @return the request most recently read, or null if none yet.
+     */
+    public HttpRequest lastRequest()
+    {
+        return lastRequest;
+    }
+
+    /**
+     * @return whether as many requests are in flight as we allow, so no more should be read for now.
+     */
+    boolean isPipelineFull()
+    {
+        return inFlight >= Math.max(1, PIPELINING_DEPTH.get());
+    }
+
+    /**
+     * @return whether there are no requests in flight, ie. read but not yet completely responded to.
+     */
+    boolean isIdle()
+    {
+        return inFlight == 0;
+    }
+
+    /**
+     * Set what to call when an exchange completes, and so another request can be read.
+     */
+    void onCompletion(Runnable listener)
+    {
+        this.completionListener = listener;
+    }
+
+    /**
+     * Queue an exchange behind those of the requests read before it.
+     */
+    void add(HttpExchange exchange)
+    {
+        exchanges.add(exchange);
+    }
+
+    /**
+     * @return the request whose response is currently being written, or failing that the last one read.
+     */
+    public HttpRequest currentRequest()
+    {
+        HttpExchange current = exchanges.peek();
+        return current != null ? current.request() : lastRequest;
+    }
+
+    /**
+     * @return whether the exchange can write to the channel now, ie. the responses to all the earlier requests
+     * have been written.
+     */
+    boolean mayWrite(HttpExchange exchange)
+    {
+        return closed || exchanges.peek() == exchange;
+    }
+
+    /**
+     * The last of an exchange's response has been written to the channel, so it's the next one's turn.
+     */
+    void completed(HttpExchange exchange)
+    {
+        if (exchanges.peek() != exchange) {
+            return;
+        }
+        exchanges.poll();
+        inFlight--;
+
+        HttpExchange next = exchanges.peek();
+        if (next != null) {
+            next.writeQueued();
+        }
+        if (completionListener != null) {
+            completionListener.run();
+        }
+    }
+
+    /**
+     * The connection has closed, so discard what the queued exchanges are holding on to. Anything they write from
+     * now on goes straight to the (closed) channel, so is failed and released there.
+     */
+    void closed()
+    {
+        closed = true;
+        HttpExchange exchange;
+        while ((exchange = exchanges.poll()) != null) {
+            exchange.discardQueued();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.*;
+import io.netty.util.AsciiString;
+
+import java.util.List;
+
+/**
+ * Switches a connection's pipeline over from HTTP/1 to cleartext HTTP/2 (h2c), either when the client asks to with
+ * an Upgrade: h2c request, or straight away if it starts with the HTTP/2 connection preface (prior knowledge).
+ *
+ * Incoming HTTP/2 requests are converted to FullHttpRequests, with the stream id in the x-http2-stream-id header, so
+ * that the same {@link AppHandler} and routes serve both. The responses go out through the {@link Http2ResponseWriter}.
+ */
+public class Http2Pipeline
+{
+    private static final DynamicBooleanProperty H2C_ENABLED = new DynamicBooleanProperty("server.http2.h2c.enabled", true);
+    private static final DynamicLongProperty MAX_CONCURRENT_STREAMS = new DynamicLongProperty("server.http2.streams.max", 100);
+    private static final DynamicIntProperty MAX_REQUEST_CONTENT_LENGTH = new DynamicIntProperty("server.http2.request.content.max", 64 * 1024);
+
+    /** The HTTP/1 only handlers, which are removed once the connection has switched to HTTP/2. */
+    private static final String[] HTTP1_HANDLERS = {"inboundPoliteHttp", "outboundPoliteHttp"};
+
+    /**
+     * Add the handlers that watch for a client wanting to use HTTP/2. Should be called once the rest of the
+     * HTTP/1 pipeline is in place.
+     */
+    public static void addTo(ChannelPipeline pipeline)
+    {
+        if (!H2C_ENABLED.get()) {
+            return;
+        }
+
+        ServerCodec codec = pipeline.get(ServerCodec.class);
+        pipeline.addBefore("codec", "h2cPriorKnowledge", new PriorKnowledgeDetector());
+        pipeline.addAfter("codec", "h2cUpgrade", new HttpServerUpgradeHandler(codec, protocol ->
+                AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol) ? new UpgradeCodec() : null,
+                MAX_REQUEST_CONTENT_LENGTH.get()));
+    }
+
+    private static Http2ConnectionHandler newConnectionHandler()
+    {
+        Http2Connection connection = new DefaultHttp2Connection(true);
+        InboundHttp2ToHttpAdapter requestAdapter = new InboundHttp2ToHttpAdapterBuilder(connection)
+                .maxContentLength(MAX_REQUEST_CONTENT_LENGTH.get())
+                .propagateSettings(false)
+                .build();
+
+        return new Http2ConnectionHandlerBuilder()
+                .connection(connection)
+                .frameListener(requestAdapter)
+                .initialSettings(new Http2Settings().maxConcurrentStreams(MAX_CONCURRENT_STREAMS.get()))
+                .build();
+    }
+
+    /**
+     * Replace the HTTP/1 handlers with the HTTP/2 ones, once the connection handler has been added.
+     */
+    private static void switchToHttp2(ChannelPipeline pipeline, Http2ConnectionHandler connectionHandler)
+    {
+        String name = pipeline.context(connectionHandler).name();
+        pipeline.addAfter(name, "http2Writer", new Http2ResponseWriter(connectionHandler.encoder()));
+
+        for (String http1Handler : HTTP1_HANDLERS) {
+            pipeline.remove(http1Handler);
+        }
+    }
+
+    /**
+     * Handles an Upgrade: h2c request. The HttpServerUpgradeHandler then passes the request on to the
+     * {@link AppHandler} as an UpgradeEvent, to be answered on stream 1.
+     */
+    private static class UpgradeCodec extends Http2ServerUpgradeCodec
+    {
+        private final Http2ConnectionHandler connectionHandler;
+
+        UpgradeCodec()
+        {
+            this(newConnectionHandler());
+        }
+
+        private UpgradeCodec(Http2ConnectionHandler connectionHandler)
+        {
+            super("http2", connectionHandler);
+            this.connectionHandler = connectionHandler;
+        }
+
+        @Override
+        public void prepareUpgradeResponse(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest, FullHttpResponse upgradeResponse)
+        {
+            // Applying the client's settings from the upgrade request can touch the flow controller's ctx, which
+            // isn't otherwise set until the connection handler is added to the pipeline.
+            try {
+                connectionHandler.encoder().flowController().channelHandlerContext(ctx);
+            }
+            catch (Http2Exception e) {
+                throw new IllegalStateException("Error preparing HTTP/2 upgrade.", e);
+            }
+            super.prepareUpgradeResponse(ctx, upgradeRequest, upgradeResponse);
+        }
+
+        @Override
+        public void upgradeTo(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest, FullHttpResponse upgradeResponse)
+        {
+            super.upgradeTo(ctx, upgradeRequest, upgradeResponse);
+            switchToHttp2(ctx.pipeline(), connectionHandler);
+        }
+    }
+
+    /**
+     * Looks at the start of a new connection, and if it's the HTTP/2 connection preface then switches straight to
+     * HTTP/2. Either way it then removes itself.
+     */
+    private static class PriorKnowledgeDetector extends ByteToMessageDecoder
+    {
+        private static final ByteBuf PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception
+        {
+            int length = Math.min(in.readableBytes(), PREFACE.readableBytes());
+            if (!ByteBufUtil.equals(PREFACE, PREFACE.readerIndex(), in, in.readerIndex(), length)) {
+                ctx.pipeline().remove(this);
+            }
+            else if (length == PREFACE.readableBytes()) {
+                ChannelPipeline pipeline = ctx.pipeline();
+                pipeline.remove("codec");
+                pipeline.remove("h2cUpgrade");
+
+                Http2ConnectionHandler connectionHandler = newConnectionHandler();
+                pipeline.addAfter(ctx.name(), "http2", connectionHandler);
+                switchToHttp2(pipeline, connectionHandler);
+                pipeline.remove(this);
+            }
+            // Otherwise wait for the rest of the preface.
+        }
+    }
+}
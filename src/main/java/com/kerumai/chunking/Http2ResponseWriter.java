@@ -0,0 +1,152 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.UnsupportedMessageTypeException;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Turns the HTTP/1 style response messages written for an HTTP/2 stream into HEADERS and DATA frames on that stream.
+ *
+ * Netty's HttpToHttp2ConnectionHandler sends any HttpContent to the stream of the last HttpResponse written, which
+ * doesn't work when several responses are being streamed out at once. So instead each message is tagged with its
+ * stream id by the {@link HttpExchange}. Should be added to the pipeline just after the Http2ConnectionHandler.
+ */
+public class Http2ResponseWriter extends ChannelOutboundHandlerAdapter
+{
+    private final Http2ConnectionEncoder encoder;
+
+    public Http2ResponseWriter(Http2ConnectionEncoder encoder)
+    {
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (!(msg instanceof StreamMessage)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        int streamId = ((StreamMessage) msg).streamId;
+        Object message = ((StreamMessage) msg).message;
+
+        if (message instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) message;
+            Http2Headers headers = HttpConversionUtil.toHttp2Headers(response, false);
+            ResponseHead responseHead = ResponseHead.of(response);
+            if (responseHead != null) {
+                responseHead.addTo(headers);
+            }
+
+            if (!(message instanceof HttpContent)) {
+                encoder.writeHeaders(ctx, streamId, headers, 0, false, promise);
+                return;
+            }
+
+            // A response head with (some of) its body. If it's a full response with no body, end the stream with the
+            // headers. Unless it's an interim response (eg. 103 Early Hints), which will have the real one following it.
+            boolean hasBody = ((HttpContent) message).content().isReadable();
+            boolean endStream = !hasBody && message instanceof LastHttpContent
+                    && response.status().codeClass() != HttpStatusClass.INFORMATIONAL;
+            encoder.writeHeaders(ctx, streamId, headers, 0, endStream, hasBody ? ctx.newPromise() : promise);
+            if (!hasBody) {
+                ReferenceCountUtil.release(message);
+                return;
+            }
+        }
+
+        if (message instanceof HttpContent) {
+            // Each chunk becomes a DATA frame, and is sent as soon as it's flushed (subject to flow control).
+            HttpContent content = (HttpContent) message;
+            encoder.writeData(ctx, streamId, content.content(), 0, content instanceof LastHttpContent, promise);
+        }
+        else if (!(message instanceof HttpResponse)) {
+            ReferenceCountUtil.release(message);
+            promise.setFailure(new UnsupportedMessageTypeException(message, HttpObject.class));
+        }
+    }
+
+    /**
+     * A response message for a particular HTTP/2 stream.
+     */
+    public static final class StreamMessage
+    {
+        private final int streamId;
+        private final Object message;
+
+        public StreamMessage(int streamId, Object message)
+        {
+            this.streamId = streamId;
+            this.message = message;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "StreamMessage(streamId=" + streamId + ", " + message + ")";
+        }
+    }
+
+    /**
+     * Tags each chunk of a ChunkedInput (eg. an HttpChunkedInput) with its stream, so that it can still be written
+     * through the ChunkedWriteHandler.
+     */
+    public static final class StreamChunkedInput implements ChunkedInput<StreamMessage>
+    {
+        private final int streamId;
+        private final ChunkedInput<?> input;
+
+        public StreamChunkedInput(int streamId, ChunkedInput<?> input)
+        {
+            this.streamId = streamId;
+            this.input = input;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception
+        {
+            return input.isEndOfInput();
+        }
+
+        @Override
+        public void close() throws Exception
+        {
+            input.close();
+        }
+
+        @Deprecated
+        @Override
+        public StreamMessage readChunk(ChannelHandlerContext ctx) throws Exception
+        {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public StreamMessage readChunk(ByteBufAllocator allocator) throws Exception
+        {
+            Object chunk = input.readChunk(allocator);
+            return chunk == null ? null : new StreamMessage(streamId, chunk);
+        }
+
+        @Override
+        public long length()
+        {
+            return input.length();
+        }
+
+        @Override
+        public long progress()
+        {
+            return input.progress();
+        }
+    }
+}
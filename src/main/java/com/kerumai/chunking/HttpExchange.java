@@ -0,0 +1,617 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request being handled, with its uri decoded once up front into the path and query parameters, plus any
+ * parameters captured from the path by the {@link Router}.
+ *
+ * The response is written through the exchange rather than straight to the channel, as HTTP/1 style messages
+ * (HttpResponse, HttpContent, ChunkedInput etc.). If the request came in on an HTTP/2 stream they're tagged with the
+ * stream id, so that the {@link Http2ResponseWriter} can turn them into frames on the right stream.
+ *
+ * Writes are coalesced on the way through: a response head is held back until the first chunk of the body is
+ * written, and each chunk until it's known whether the next is the last, so that the head goes out together with the
+ * first chunk and the last chunk together with the end of the body, as single messages. Anything held back is written
+ * on the next flush.
+ *
+ * On an HTTP/1 connection the exchange is queued behind those of any earlier pipelined requests, and what's written
+ * is held until their responses have been written, see {@link Http1Connection}.
+ *
+ * The exchange's state is only touched from the channel's event loop. A response written from any other thread, eg.
+ * by a route run on an {@link OffloadExecutor}, is passed over to the event loop to be written, in the same order.
+ *
+ * Once the response is complete its timings are recorded in the {@link ServerMetrics}, against the route, and the
+ * exchange in the {@link AccessLog}.
+ */
+public class HttpExchange
+{
+    private final ChannelHandlerContext ctx;
+    private final HttpRequest request;
+    private final int streamId;
+    private final String path;
+    private final Map<String, List<String>> queryParams;
+    private Map<String, String> pathParams = null;
+
+    private HttpResponse pendingHead = null;
+    private ChannelPromise pendingHeadPromise = null;
+    private HttpContent pendingContent = null;
+    private ChannelPromise pendingContentPromise = null;
+
+    /** The HTTP/1 connection the exchange is queued on, so that responses go out in order, or null for HTTP/2. */
+    private final Http1Connection connection;
+    /** What's been written while waiting for the earlier responses on the connection, as message and promise pairs. */
+    private ArrayDeque<Object> queued = null;
+    private boolean flushQueued = false;
+    private boolean responseWritten = false;
+
+    /** The timings of the exchange, as System.nanoTime() values. Only recorded if the start time is known. */
+    private String route = "unmatched";
+    private long startNanos = 0;
+    private long decodedNanos = 0;
+    private long headNanos = 0;
+    private long firstChunkNanos = 0;
+    private boolean firstChunkWritten = false;
+    private boolean chunkedResponse = false;
+    /** What's been written of the response, for the {@link AccessLog}. */
+    private int status = 0;
+    private long bodyBytes = 0;
+    private int bodyChunks = 0;
+
+    public HttpExchange(ChannelHandlerContext ctx, HttpRequest request)
+    {
+        this(ctx, request, 0, null);
+    }
+
+    /**
+     * @param streamId the HTTP/2 stream the request came in on, or 0 for HTTP/1.
+     * @param connection the HTTP/1 connection to queue the exchange on behind any earlier requests, or null if it
+     * doesn't need to wait for them, eg. for HTTP/2.
+     */
+    public HttpExchange(ChannelHandlerContext ctx, HttpRequest request, int streamId, Http1Connection connection)
+    {
+        this.ctx = ctx;
+        this.request = request;
+        this.streamId = streamId;
+        this.connection = connection;
+        if (connection != null) {
+            connection.add(this);
+        }
+
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        this.path = decoder.path();
+        this.queryParams = decoder.parameters();
+    }
+
+    public HttpRequest request()
+    {
+        return request;
+    }
+
+    public Channel channel()
+    {
+        return ctx.channel();
+    }
+
+    /**
+     * The context of the handler that the exchange writes through.
+     */
+    ChannelHandlerContext handlerContext()
+    {
+        return ctx;
+    }
+
+    public int streamId()
+    {
+        return streamId;
+    }
+
+    public boolean isHttp2()
+    {
+        return streamId != 0;
+    }
+
+    public ChannelFuture write(Object msg)
+    {
+        if (!ctx.executor().inEventLoop()) {
+            ChannelPromise promise = ctx.newPromise();
+            ctx.executor().execute(() -> cascade(write(msg), promise));
+            return promise;
+        }
+
+        ChannelFuture future = coalesce(msg);
+        if (startNanos != 0) {
+            time(msg, future);
+        }
+        return future;
+    }
+
+    private ChannelFuture coalesce(Object msg)
+    {
+        if (msg instanceof HttpResponse && !(msg instanceof HttpContent)) {
+            writePending();
+            pendingHead = (HttpResponse) msg;
+            pendingHeadPromise = ctx.newPromise();
+            return pendingHeadPromise;
+        }
+
+        if (msg instanceof HttpContent && !(msg instanceof HttpResponse)) {
+            HttpContent content = (HttpContent) msg;
+            ChannelPromise promise = ctx.newPromise();
+
+            if (pendingContent != null) {
+                if (content instanceof LastHttpContent) {
+                    content = mergeLast(pendingContent, (LastHttpContent) content);
+                    cascade(promise, pendingContentPromise);
+                    pendingContent = null;
+                }
+                else {
+                    writePending();
+                }
+            }
+
+            if (content instanceof LastHttpContent) {
+                if (pendingHead != null) {
+                    content = mergeHead(pendingHead, content);
+                    cascade(promise, pendingHeadPromise);
+                    pendingHead = null;
+                }
+                channelWrite(forStream(content), promise);
+            }
+            else {
+                pendingContent = content;
+                pendingContentPromise = promise;
+            }
+            return promise;
+        }
+
+        writePending();
+        ChannelPromise promise = ctx.newPromise();
+        channelWrite(forStream(msg), promise);
+        return promise;
+    }
+
+    public ChannelFuture writeAndFlush(Object msg)
+    {
+        ChannelFuture future = write(msg);
+        flush();
+        return future;
+    }
+
+    /**
+     * Flush the response so far. The flush itself may be combined with others made in the same event loop tick, see
+     * {@link FlushConsolidator}.
+     */
+    public void flush()
+    {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(this::flush);
+            return;
+        }
+        writePending();
+        channelFlush();
+    }
+
+    /**
+     * Flush the response so far as an early flush boundary, eg. to get the start of a page out to the client while
+     * the rest of it is still being put together. It won't be held back to be combined with later flushes.
+     */
+    public void earlyFlush()
+    {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(this::earlyFlush);
+            return;
+        }
+        writePending();
+        channelWrite(FlushConsolidator.EARLY_FLUSH, ctx.voidPromise());
+        channelFlush();
+    }
+
+    private void writePending()
+    {
+        if (pendingContent != null) {
+            HttpContent content = pendingContent;
+            ChannelPromise promise = pendingContentPromise;
+            pendingContent = null;
+            pendingContentPromise = null;
+
+            if (pendingHead != null) {
+                content = mergeHead(pendingHead, content);
+                cascade(promise, pendingHeadPromise);
+                pendingHead = null;
+            }
+            channelWrite(forStream(content), promise);
+        }
+        else if (pendingHead != null) {
+            channelWrite(forStream(pendingHead), pendingHeadPromise);
+        }
+        pendingHead = null;
+        pendingHeadPromise = null;
+    }
+
+    /**
+     * Write to the channel, or if the responses to earlier requests on the connection haven't all been written yet,
+     * hold on to the message until they have.
+     */
+    private void channelWrite(Object msg, ChannelPromise promise)
+    {
+        if (mustWait()) {
+            if (queued == null) {
+                queued = new ArrayDeque<>(8);
+            }
+            queued.add(msg);
+            queued.add(promise);
+            return;
+        }
+
+        ctx.write(msg, promise);
+        if (connection != null && isEndOfResponse(msg)) {
+            responseWritten = true;
+            connection.completed(this);
+        }
+    }
+
+    /**
+     * @return whether the message is (or ends with) the end of the final response. An interim response such as 103
+     * Early Hints is a FullHttpResponse, but the final one is still to come.
+     */
+    private static boolean isEndOfResponse(Object msg)
+    {
+        if (msg instanceof HttpResponse && ((HttpResponse) msg).status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+            return false;
+        }
+        return msg instanceof LastHttpContent || msg instanceof ChunkedInput;
+    }
+
+    /**
+     * @return whether the responses to earlier requests on the connection are still being written, so anything
+     * written now has to wait.
+     */
+    private boolean mustWait()
+    {
+        return connection != null && !responseWritten && !connection.mayWrite(this);
+    }
+
+    private void channelFlush()
+    {
+        if (mustWait()) {
+            flushQueued = true;
+        }
+        else {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * It's this exchange's turn to write to the connection, so write (and flush) what it's been holding on to.
+     */
+    void writeQueued()
+    {
+        ArrayDeque<Object> queued = this.queued;
+        this.queued = null;
+        if (queued != null) {
+            while (!queued.isEmpty()) {
+                channelWrite(queued.poll(), (ChannelPromise) queued.poll());
+            }
+        }
+        if (flushQueued) {
+            flushQueued = false;
+            ctx.flush();
+        }
+    }
+
+    /**
+     * The connection has closed before it was this exchange's turn, so release what it's been holding on to.
+     */
+    void discardQueued()
+    {
+        ArrayDeque<Object> queued = this.queued;
+        this.queued = null;
+        if (queued == null) {
+            return;
+        }
+        while (!queued.isEmpty()) {
+            Object msg = queued.poll();
+            ChannelPromise promise = (ChannelPromise) queued.poll();
+            try {
+                if (msg instanceof ChunkedInput) {
+                    ((ChunkedInput<?>) msg).close();
+                }
+                else {
+                    ReferenceCountUtil.release(msg);
+                }
+            }
+            catch (Exception e) {
+                // Nothing more to be done with it.
+            }
+            if (!promise.isVoid()) {
+                promise.tryFailure(new ClosedChannelException());
+            }
+        }
+    }
+
+    /**
+     * Note down when the response head is written, and when the first and last parts of the body have actually
+     * been written to the socket.
+     */
+    private void time(Object msg, ChannelFuture future)
+    {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                return;
+            }
+            headNanos = System.nanoTime();
+            chunkedResponse = HttpUtil.isTransferEncodingChunked(response);
+            status = response.status().code();
+        }
+
+        // A ChunkedInput is the whole of the body, up to and including the last content.
+        boolean last = msg instanceof LastHttpContent || msg instanceof ChunkedInput;
+        long bytes = bodyBytes(msg);
+        boolean body = last || bytes > 0;
+        if (bytes > 0) {
+            bodyBytes += bytes;
+            bodyChunks++;
+        }
+
+        if (body && !firstChunkWritten) {
+            firstChunkWritten = true;
+            future.addListener(f -> firstChunkNanos = System.nanoTime());
+        }
+        if (last) {
+            future.addListener(f -> {
+                long now = System.nanoTime();
+                long firstByteNanos = firstChunkNanos != 0 ? firstChunkNanos : now;
+                if (f.isSuccess()) {
+                    ServerMetrics.record(route, chunkedResponse, startNanos, decodedNanos, headNanos, firstByteNanos, now);
+                }
+                AccessLog.record(this, status, bodyBytes, bodyChunks, startNanos, firstByteNanos, now, f.isSuccess());
+            });
+        }
+    }
+
+    /**
+     * @return the number of bytes of the response body in the message, as far as is known.
+     */
+    private static long bodyBytes(Object msg)
+    {
+        if (msg instanceof HttpContent) {
+            return ((HttpContent) msg).content().readableBytes();
+        }
+        if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        if (msg instanceof ChunkedInput) {
+            return Math.max(0, ((ChunkedInput<?>) msg).length());
+        }
+        return 0;
+    }
+
+    private static HttpContent mergeHead(HttpResponse head, HttpContent content)
+    {
+        if (content instanceof LastHttpContent) {
+            FullHttpResponse response = ResponseHead.toFullResponse(head, content.content());
+            response.trailingHeaders().set(((LastHttpContent) content).trailingHeaders());
+            return response;
+        }
+        return new ResponseHeadAndChunk(head, content.content());
+    }
+
+    private static LastHttpContent mergeLast(HttpContent content, LastHttpContent last)
+    {
+        ByteBuf merged;
+        if (last.content().isReadable()) {
+            merged = Unpooled.wrappedBuffer(content.content(), last.content());
+        }
+        else {
+            merged = content.content();
+            last.release();
+        }
+        LastHttpContent mergedLast = new DefaultLastHttpContent(merged);
+        mergedLast.trailingHeaders().set(last.trailingHeaders());
+        return mergedLast;
+    }
+
+    /**
+     * Complete the promise of a message that was merged into another, once the merged one has been written.
+     */
+    private static void cascade(ChannelFuture merged, ChannelPromise promise)
+    {
+        merged.addListener(f -> {
+            if (f.isSuccess()) {
+                promise.trySuccess();
+            }
+            else {
+                promise.tryFailure(f.cause());
+            }
+        });
+    }
+
+    private Object forStream(Object msg)
+    {
+        if (streamId == 0) {
+            return msg;
+        }
+        if (msg instanceof ChunkedInput) {
+            return new Http2ResponseWriter.StreamChunkedInput(streamId, (ChunkedInput<?>) msg);
+        }
+        return new Http2ResponseWriter.StreamMessage(streamId, msg);
+    }
+
+    /**
+     * @param startNanos when the request started being read.
+     */
+    void requestDecoded(long startNanos)
+    {
+        this.startNanos = startNanos;
+        this.decodedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the name of the route that matched the request, or "unmatched".
+     */
+    public String route()
+    {
+        return route;
+    }
+
+    void setRoute(String route)
+    {
+        this.route = route;
+    }
+
+    public String path()
+    {
+        return path;
+    }
+
+    /**
+     * @return the first value of the query parameter, or null if not present.
+     */
+    public String queryParam(String name)
+    {
+        List<String> values = queryParams.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    public Map<String, List<String>> queryParams()
+    {
+        return queryParams;
+    }
+
+    public String pathParam(String name)
+    {
+        return pathParams == null ? null : pathParams.get(name);
+    }
+
+    public Map<String, String> pathParams()
+    {
+        return pathParams == null ? Collections.emptyMap() : pathParams;
+    }
+
+    void setPathParam(String name, String value)
+    {
+        if (pathParams == null) {
+            pathParams = new HashMap<>(4);
+        }
+        pathParams.put(name, value);
+    }
+
+    void removePathParam(String name)
+    {
+        if (pathParams != null) {
+            pathParams.remove(name);
+        }
+    }
+
+    /**
+     * A response head along with the first chunk of its body, for when there's more of the body to come. Netty's
+     * HTTP/1 encoder encodes both in one go.
+     */
+    private static final class ResponseHeadAndChunk extends DefaultHttpResponse implements HttpContent, ResponseHead.Carrier
+    {
+        private final ByteBuf content;
+        private final ResponseHead responseHead;
+
+        ResponseHeadAndChunk(HttpResponse head, ByteBuf content)
+        {
+            this(head, content, ResponseHead.of(head));
+        }
+
+        private ResponseHeadAndChunk(HttpResponse head, ByteBuf content, ResponseHead responseHead)
+        {
+            super(head.protocolVersion(), head.status(), head.headers());
+            this.content = content;
+            this.responseHead = responseHead;
+        }
+
+        @Override
+        public ResponseHead responseHead()
+        {
+            return responseHead;
+        }
+
+        @Override
+        public ByteBuf content()
+        {
+            return content;
+        }
+
+        @Override
+        public HttpContent copy()
+        {
+            HttpResponse head = new DefaultHttpResponse(protocolVersion(), status());
+            head.headers().set(headers());
+            return new ResponseHeadAndChunk(head, content.copy(), responseHead);
+        }
+
+        @Override
+        public HttpContent duplicate()
+        {
+            return new ResponseHeadAndChunk(this, content.duplicate());
+        }
+
+        @Override
+        public HttpContent retain()
+        {
+            content.retain();
+            return this;
+        }
+
+        @Override
+        public HttpContent retain(int increment)
+        {
+            content.retain(increment);
+            return this;
+        }
+
+        @Override
+        public HttpContent touch()
+        {
+            content.touch();
+            return this;
+        }
+
+        @Override
+        public HttpContent touch(Object hint)
+        {
+            content.touch(hint);
+            return this;
+        }
+
+        @Override
+        public int refCnt()
+        {
+            return content.refCnt();
+        }
+
+        @Override
+        public boolean release()
+        {
+            return content.release();
+        }
+
+        @Override
+        public boolean release(int decrement)
+        {
+            return content.release(decrement);
+        }
+    }
+}
@@ -3,13 +3,18 @@ package com.kerumai.chunking;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.*;
-import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+
 /**
  * Should be added to the pipeline AFTER http codecs.
  *
+ * Passes on each request it reads to the {@link Http1Connection}, and once as many are in flight as the connection
+ * allows, stops reading and holds on to any more that have already been decoded until earlier ones have completed.
+ *
  * User: Mike Smith
  * Date: 2/12/16
  * Time: 2:49 PM
@@ -18,26 +23,95 @@ public class InboundPoliteHTTPHandler extends ChannelInboundHandlerAdapter
 {
     private static final Logger LOG = LoggerFactory.getLogger(InboundPoliteHTTPHandler.class);
 
-    public final static AttributeKey<HttpRequest> KEY_REQUEST = AttributeKey.newInstance("_hvih_request");
+    private final Http1Connection connection;
+
+    /** Requests (and their content) read while the pipeline was full, to be passed on once there's room. */
+    private final ArrayDeque<Object> deferred = new ArrayDeque<>();
+    private boolean resumeScheduled = false;
+
+    public InboundPoliteHTTPHandler(Http1Connection connection)
+    {
+        this.connection = connection;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception
+    {
+        connection.onCompletion(() -> {
+            // Not while the completed exchange is still writing.
+            if (!deferred.isEmpty() && !resumeScheduled) {
+                resumeScheduled = true;
+                ctx.executor().execute(() -> resume(ctx));
+            }
+        });
+    }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (!deferred.isEmpty() || (msg instanceof HttpRequest && connection.isPipelineFull())) {
+            if (deferred.isEmpty()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            deferred.add(msg);
+            return;
+        }
+        read(ctx, msg);
+    }
+
+    private void read(ChannelHandlerContext ctx, Object msg)
     {
         if (msg instanceof HttpRequest) {
-            HttpRequest request = (HttpRequest) msg;
-            ctx.attr(KEY_REQUEST).set(request);
+            connection.requestReceived((HttpRequest) msg);
+        }
+        ctx.fireChannelRead(msg);
+    }
 
+    private void resume(ChannelHandlerContext ctx)
+    {
+        resumeScheduled = false;
+        boolean resumed = false;
+        while (!deferred.isEmpty()) {
+            if (deferred.peek() instanceof HttpRequest && connection.isPipelineFull()) {
+                break;
+            }
+            read(ctx, deferred.poll());
+            resumed = true;
+        }
+        if (resumed) {
+            ctx.fireChannelReadComplete();
+        }
+        if (deferred.isEmpty() && ctx.channel().isActive()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        releaseDeferred();
+        connection.closed();
+        super.channelInactive(ctx);
+    }
 
-        }
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        releaseDeferred();
+    }
 
-        super.channelRead(ctx, msg);
+    private void releaseDeferred()
+    {
+        Object msg;
+        while ((msg = deferred.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
     {
-        HttpRequest request = ctx.attr(KEY_REQUEST).get();
+        HttpRequest request = connection.lastRequest();
         if (request == null) {
             LOG.error("Unhandled exception caught. uri not known.", cause);
         }
@@ -0,0 +1,97 @@
+package com.kerumai.chunking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds, with log-linear buckets in the style of HdrHistogram. Each power of 2 is
+ * split into 16 equal sub-buckets, so a value is counted to within about 6% of what it really was, from 1us up to
+ * around 19 hours.
+ *
+ * Only one thread (an event loop) ever records into a histogram, so recording needs no locks or CAS loops. Any other
+ * thread can read it at any time though, and will see the counts as of a moment or so before.
+ */
+class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 36;
+    static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Must only be called from the histogram's own thread.
+     */
+    void record(long micros)
+    {
+        int index = bucketIndex(Math.max(0, micros));
+        counts.lazySet(index, counts.get(index) + 1);
+        sum.lazySet(sum.get() + micros);
+    }
+
+    /**
+     * Add this histogram's counts into a merged set, and return the sum of its values.
+     */
+    long addTo(long[] merged)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            merged[i] += counts.get(i);
+        }
+        return sum.get();
+    }
+
+    /**
+     * @param counts merged counts, see {@link #addTo(long[])}.
+     * @return the value (to within the bucket's precision) that the given percentage of the counted values are at or
+     * below, or 0 if there are none.
+     */
+    static long valueAtPercentile(long[] counts, double percentile)
+    {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i) - 1;
+            }
+        }
+        return bucketUpperBound(counts.length - 1) - 1;
+    }
+
+    static int bucketIndex(long micros)
+    {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the lowest value that's counted in the bucket after this one.
+     */
+    static long bucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << shift;
+    }
+}
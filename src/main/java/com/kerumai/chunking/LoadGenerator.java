@@ -0,0 +1,390 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicStringProperty;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for comparing how quickly pages are delivered chunked and not, eg. /clean/ and /clean/?chunked=false.
+ *
+ * Requests are sent at a fixed overall rate, taking turns through the paths and spread over a number of keep-alive
+ * connections (optionally pipelined). For each it records the time to first byte (which may be a 103 Early Hints),
+ * the time to the first chunk of the real response's body, and the time to the full body.
+ *
+ * All times are measured from when each request was meant to be sent according to the rate, rather than when it
+ * actually was, to correct for coordinated omission: if the server stalls, the requests queued up behind it are
+ * counted as waiting for the whole stall, as real users arriving at that rate would have.
+ *
+ * Configured with system properties (loadgen.*), and prints percentiles as a table and as JSON.
+ */
+public class LoadGenerator
+{
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final DynamicStringProperty HOST = new DynamicStringProperty("loadgen.host", "127.0.0.1");
+    private static final DynamicIntProperty PORT = new DynamicIntProperty("loadgen.port", 7001);
+    private static final DynamicStringProperty PATHS = new DynamicStringProperty("loadgen.paths", "/clean/,/clean/?chunked=false");
+    private static final DynamicIntProperty CONNECTIONS = new DynamicIntProperty("loadgen.connections", 64);
+    private static final DynamicIntProperty PIPELINE_DEPTH = new DynamicIntProperty("loadgen.pipeline.depth", 1);
+    private static final DynamicIntProperty RATE = new DynamicIntProperty("loadgen.rate", 50);
+    private static final DynamicIntProperty WARMUP_SECS = new DynamicIntProperty("loadgen.warmup", 5);
+    private static final DynamicIntProperty DURATION_SECS = new DynamicIntProperty("loadgen.duration", 30);
+    private static final DynamicIntProperty THREADS = new DynamicIntProperty("loadgen.threads", 2);
+    private static final DynamicStringProperty JSON_FILE = new DynamicStringProperty("loadgen.report.json", null);
+
+    private static final long DRAIN_TIMEOUT_MS = 30000;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private static final String[] METRICS = {"ttfb", "firstChunk", "fullBody"};
+
+    private final String[] paths;
+    private final ByteBuf[] requests;
+    private final List<Connection> connections = new ArrayList<>();
+    /** Requests dispatched to a connection but not yet completed or failed. */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    private long startNanos;
+    private long measureFromNanos;
+
+    public static void main(String[] args) throws Exception
+    {
+        new LoadGenerator().run();
+    }
+
+    public LoadGenerator()
+    {
+        this.paths = PATHS.get().split(",");
+        this.requests = new ByteBuf[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            requests[i] = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(
+                    "GET " + paths[i].trim() + " HTTP/1.1\r\n"
+                            + "Host: " + HOST.get() + ":" + PORT.get() + "\r\n"
+                            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                            + "Accept-Encoding: gzip\r\n"
+                            + "\r\n", StandardCharsets.US_ASCII));
+        }
+    }
+
+    public void run() throws Exception
+    {
+        int rate = RATE.get();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long warmupNanos = TimeUnit.SECONDS.toNanos(WARMUP_SECS.get());
+        long durationNanos = TimeUnit.SECONDS.toNanos(DURATION_SECS.get());
+
+        EventLoopGroup group = new NioEventLoopGroup(THREADS.get());
+        try {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch)
+                        {
+                            Connection connection = new Connection();
+                            connections.add(connection);
+                            ch.pipeline().addLast("codec", new HttpResponseDecoder());
+                            ch.pipeline().addLast("connection", connection);
+                        }
+                    });
+
+            for (int i = 0; i < CONNECTIONS.get(); i++) {
+                bootstrap.connect(HOST.get(), PORT.get()).sync();
+            }
+            LOG.info("Connected. connections=" + connections.size() + ", pipeline_depth=" + PIPELINE_DEPTH.get()
+                    + ", rate=" + rate + "/s, warmup=" + WARMUP_SECS.get() + "s, duration=" + DURATION_SECS.get()
+                    + "s, paths=" + String.join(",", paths));
+
+            startNanos = System.nanoTime();
+            measureFromNanos = startNanos + warmupNanos;
+            long endNanos = measureFromNanos + durationNanos;
+
+            // Every ms, hand out the requests that have become due since the last time. Each keeps the time it was
+            // due, however late it actually gets sent.
+            long[] dispatched = {0};
+            ScheduledFuture<?> dispatcher = group.next().scheduleAtFixedRate(() -> {
+                long now = Math.min(System.nanoTime(), endNanos);
+                long due = (now - startNanos) / intervalNanos + 1;
+                for (long i = dispatched[0]; i < due; i++) {
+                    Connection connection = connections.get((int) (i % connections.size()));
+                    Request request = new Request((int) (i % paths.length), startNanos + i * intervalNanos);
+                    outstanding.incrementAndGet();
+                    connection.channel.eventLoop().execute(() -> connection.send(request));
+                }
+                dispatched[0] = due;
+            }, 0, 1, TimeUnit.MILLISECONDS);
+
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(endNanos - System.nanoTime()) + 1);
+            dispatcher.cancel(false);
+
+            long drainUntil = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+            while (outstanding.get() > 0 && System.currentTimeMillis() < drainUntil) {
+                Thread.sleep(50);
+            }
+            if (outstanding.get() > 0) {
+                LOG.warn("Gave up waiting for responses. outstanding=" + outstanding.get());
+            }
+
+            for (Connection connection : connections) {
+                connection.channel.close().sync();
+            }
+        }
+        finally {
+            group.shutdownGracefully().sync();
+        }
+
+        report();
+    }
+
+    private void report() throws IOException
+    {
+        // Merge each path's results across the connections.
+        long[][][] counts = new long[paths.length][METRICS.length][LatencyHistogram.BUCKETS];
+        long[] completed = new long[paths.length];
+        long[] errors = new long[paths.length];
+        for (Connection connection : connections) {
+            for (int p = 0; p < paths.length; p++) {
+                PathResults results = connection.results[p];
+                for (int m = 0; m < METRICS.length; m++) {
+                    results.histograms[m].addTo(counts[p][m]);
+                }
+                completed[p] += results.completed;
+                errors[p] += results.errors;
+            }
+        }
+
+        StringBuilder table = new StringBuilder();
+        table.append(String.format(Locale.ROOT, "%-32s %-10s %9s %7s %10s %10s %10s %10s %10s%n",
+                "path", "metric", "requests", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        StringBuilder json = new StringBuilder();
+        json.append("{\"rate\":").append(RATE.get())
+                .append(",\"connections\":").append(connections.size())
+                .append(",\"pipelineDepth\":").append(PIPELINE_DEPTH.get())
+                .append(",\"durationSeconds\":").append(DURATION_SECS.get())
+                .append(",\"paths\":[");
+
+        for (int p = 0; p < paths.length; p++) {
+            json.append(p == 0 ? "" : ",").append("{\"path\":\"").append(paths[p].replace("\"", "\\\""))
+                    .append("\",\"requests\":").append(completed[p]).append(",\"errors\":").append(errors[p]);
+            for (int m = 0; m < METRICS.length; m++) {
+                table.append(String.format(Locale.ROOT, "%-32s %-10s %9d %7d", paths[p], METRICS[m], completed[p], errors[p]));
+                json.append(",\"").append(METRICS[m]).append("\":{");
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    double ms = LatencyHistogram.valueAtPercentile(counts[p][m], PERCENTILES[i]) / 1000.0;
+                    table.append(String.format(Locale.ROOT, " %10.2f", ms));
+                    json.append('"').append(PERCENTILE_NAMES[i]).append("\":").append(ms).append(',');
+                }
+                double max = LatencyHistogram.valueAtPercentile(counts[p][m], 100) / 1000.0;
+                table.append(String.format(Locale.ROOT, " %10.2f%n", max));
+                json.append("\"max\":").append(max).append('}');
+            }
+            json.append('}');
+        }
+        json.append("]}");
+
+        System.out.println();
+        System.out.print(table);
+        System.out.println();
+        String jsonFile = JSON_FILE.get();
+        if (jsonFile == null || jsonFile.isEmpty()) {
+            System.out.println(json);
+        }
+        else {
+            Files.write(Paths.get(jsonFile), json.toString().getBytes(StandardCharsets.UTF_8));
+            LOG.info("Wrote JSON report to " + jsonFile);
+        }
+    }
+
+    /**
+     * A request to send, and the times (from System.nanoTime()) that its response arrived.
+     */
+    private static class Request
+    {
+        private final int path;
+        private final long intendedNanos;
+        private long firstByteNanos = 0;
+        private long firstChunkNanos = 0;
+        /** The status of the real (non-interim) response, once its head has arrived. */
+        private int status = 0;
+
+        Request(int path, long intendedNanos)
+        {
+            this.path = path;
+            this.intendedNanos = intendedNanos;
+        }
+    }
+
+    /**
+     * One path's results on one connection. Only touched by the connection's event loop until the run is over.
+     */
+    private static class PathResults
+    {
+        private final LatencyHistogram[] histograms = new LatencyHistogram[METRICS.length];
+        private long completed = 0;
+        private long errors = 0;
+
+        PathResults()
+        {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * A keep-alive connection to the server. Requests wait their turn for it, with up to the pipeline depth of them
+     * sent at once.
+     */
+    private class Connection extends SimpleChannelInboundHandler<HttpObject>
+    {
+        private final PathResults[] results = new PathResults[paths.length];
+        private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+        private final ArrayDeque<Request> inFlight = new ArrayDeque<>();
+        private Channel channel;
+
+        Connection()
+        {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new PathResults();
+            }
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx)
+        {
+            channel = ctx.channel();
+        }
+
+        void send(Request request)
+        {
+            waiting.add(request);
+            sendWaiting();
+        }
+
+        private void sendWaiting()
+        {
+            if (!channel.isActive()) {
+                while (!waiting.isEmpty()) {
+                    failed(waiting.poll());
+                }
+                return;
+            }
+
+            boolean sent = false;
+            while (!waiting.isEmpty() && inFlight.size() < PIPELINE_DEPTH.get()) {
+                Request request = waiting.poll();
+                inFlight.add(request);
+                channel.write(requests[request.path].duplicate());
+                sent = true;
+            }
+            if (sent) {
+                channel.flush();
+            }
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg)
+        {
+            Request request = inFlight.peek();
+            if (request == null) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (request.firstByteNanos == 0) {
+                request.firstByteNanos = now;
+            }
+
+            if (msg instanceof HttpResponse) {
+                HttpResponseStatus status = ((HttpResponse) msg).status();
+                if (status.codeClass() != HttpStatusClass.INFORMATIONAL) {
+                    request.status = status.code();
+                }
+            }
+
+            // Anything before the real response's head belongs to an interim response (eg. 103 Early Hints).
+            if (request.status == 0 || !(msg instanceof HttpContent)) {
+                return;
+            }
+            if (request.firstChunkNanos == 0 && ((HttpContent) msg).content().isReadable()) {
+                request.firstChunkNanos = now;
+            }
+            if (msg instanceof LastHttpContent) {
+                inFlight.poll();
+                completed(request, now);
+                sendWaiting();
+            }
+        }
+
+        private void completed(Request request, long now)
+        {
+            outstanding.decrementAndGet();
+            if (request.intendedNanos < measureFromNanos) {
+                return;
+            }
+
+            PathResults pathResults = results[request.path];
+            if (request.status / 100 != 2) {
+                pathResults.errors++;
+                return;
+            }
+            pathResults.completed++;
+            pathResults.histograms[0].record(micros(request.firstByteNanos - request.intendedNanos));
+            pathResults.histograms[1].record(micros((request.firstChunkNanos == 0 ? now : request.firstChunkNanos) - request.intendedNanos));
+            pathResults.histograms[2].record(micros(now - request.intendedNanos));
+        }
+
+        private void failed(Request request)
+        {
+            outstanding.decrementAndGet();
+            if (request.intendedNanos >= measureFromNanos) {
+                results[request.path].errors++;
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception
+        {
+            while (!inFlight.isEmpty()) {
+                failed(inFlight.poll());
+            }
+            while (!waiting.isEmpty()) {
+                failed(waiting.poll());
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+        {
+            LOG.warn("Error on connection, so closing it. channel=" + ctx.channel(), cause);
+            ctx.close();
+        }
+    }
+
+    private static long micros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,183 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of threads for work that would otherwise block an event loop, eg. reading from disk, rendering templates
+ * or calling backends synchronously. Each of the few event loops serves many connections, so one slow request on
+ * one stalls all of the others.
+ *
+ * Routes are run on the event loop unless they're registered wrapped by {@link #route(RouteHandler)}, and page
+ * fragments can be produced here with {@link #fragment(FragmentSource)}. What they write to their
+ * {@link HttpExchange} is passed back to the channel's event loop to be written.
+ *
+ * Rather than letting work queue up without limit once the pool is saturated, no more than
+ * server.offload.[pool].queue.depth tasks are allowed to wait for a thread, after which requests are shed straight
+ * away with a 503 (or a fragment with its fallback). The pool has server.offload.[pool].threads threads, fixed when
+ * it's created. Both default to server.offload.queue.depth and server.offload.threads. With 0 threads tasks are run
+ * straight away on the calling thread instead, ie. nothing is offloaded.
+ */
+public class OffloadExecutor
+{
+    private static final Logger LOG = LoggerFactory.getLogger(OffloadExecutor.class);
+    private static final DynamicIntProperty DEFAULT_THREADS = new DynamicIntProperty("server.offload.threads", 16);
+    private static final DynamicIntProperty DEFAULT_QUEUE_DEPTH = new DynamicIntProperty("server.offload.queue.depth", 64);
+
+    private final String name;
+    private final DynamicIntProperty queueDepth;
+    private final ThreadPoolExecutor executor;
+    /** Tasks that have been accepted but haven't finished yet, whether running or waiting for a thread. */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong shed = new AtomicLong();
+
+    public OffloadExecutor(String name)
+    {
+        this.name = name;
+        DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+        int threads = properties.getIntProperty("server.offload." + name + ".threads", DEFAULT_THREADS.get()).get();
+        this.queueDepth = properties.getIntProperty("server.offload." + name + ".queue.depth", DEFAULT_QUEUE_DEPTH.get());
+        if (threads <= 0) {
+            this.executor = null;
+            return;
+        }
+
+        // The queue itself is unbounded, so that its limit can be changed live. It's enforced in execute() instead.
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "ServerOffload-" + name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Run the task on the pool, unless as many tasks as we allow are already waiting for a thread.
+     *
+     * @throws RejectedExecutionException if the pool is saturated, or has been shut down.
+     */
+    public void execute(Runnable task)
+    {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        if (pending.incrementAndGet() > executor.getMaximumPoolSize() + queueDepth.get()) {
+            pending.decrementAndGet();
+            shed.incrementAndGet();
+            throw new RejectedExecutionException("Offload pool is saturated. pool=" + name);
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                }
+                finally {
+                    pending.decrementAndGet();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a future completed on the pool with the result of the task, or failed with a
+     * RejectedExecutionException if the pool is saturated.
+     */
+    public <T> CompletableFuture<T> supply(Callable<T> task)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            execute(() -> {
+                try {
+                    future.complete(task.call());
+                }
+                catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return a handler that runs the given one on the pool, or responds with a 503 if the pool is saturated.
+     */
+    public RouteHandler route(RouteHandler handler)
+    {
+        return (ctx, exchange) -> {
+            try {
+                execute(() -> {
+                    if (!ctx.channel().isActive()) {
+                        // The client gave up while it was waiting.
+                        return;
+                    }
+                    try {
+                        handler.handle(ctx, exchange);
+                    }
+                    catch (Exception e) {
+                        LOG.error("Error during respond. uri=" + exchange.request().uri(), e);
+                        Utils.sendDefaultErrorResponse(exchange);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                Utils.sendServiceUnavailable(exchange);
+            }
+        };
+    }
+
+    /**
+     * @return a source that produces the fragment on the pool, eg. one that blocks while it does, and that fails if
+     * the pool is saturated, so that the fragment's fallback is used.
+     */
+    public FragmentSource fragment(FragmentSource source)
+    {
+        return (ctx, exchange) -> {
+            CompletableFuture<CompletableFuture<ByteBuf>> produced = supply(() -> source.produce(ctx, exchange));
+            return produced.thenCompose(f -> f);
+        };
+    }
+
+    /**
+     * @return how many tasks are running or waiting for a thread.
+     */
+    public int pending()
+    {
+        return pending.get();
+    }
+
+    /**
+     * @return how many tasks have been turned away since the pool was created.
+     */
+    public long shed()
+    {
+        return shed.get();
+    }
+
+    public void shutdown()
+    {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
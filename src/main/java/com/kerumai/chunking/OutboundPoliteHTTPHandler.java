@@ -4,11 +4,16 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.*;
-import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Fixes up HTTP/1 responses on their way out, and closes the connection once a response is finished if it isn't to
+ * be kept alive.
+ *
+ * A close asked for while responses are still in flight, eg. because the server is draining, is held off until
+ * they've all been written, and any response started in the meantime is sent with Connection: close.
+ *
  * User: Mike Smith
  * Date: 2/12/16
  * Time: 3:05 PM
@@ -17,31 +22,47 @@ public class OutboundPoliteHTTPHandler extends ChannelOutboundHandlerAdapter
 {
     private static final Logger LOG = LoggerFactory.getLogger(OutboundPoliteHTTPHandler.class);
 
-    private final static AttributeKey<Boolean> KEY_SHOULD_CLOSE = AttributeKey.newInstance("_hvoh_close_conn");
-    private final static AttributeKey<Boolean> KEY_CLOSE_NOW = AttributeKey.newInstance("_hvoh_close_now");
+    private final Http1Connection connection;
 
+    /** Per connection state. Plain fields rather than channel attributes, as they're checked on every flush. */
+    private boolean shouldClose = false;
+    private boolean closeNow = false;
+    private ChannelPromise pendingClose = null;
+
+    public OutboundPoliteHTTPHandler(Http1Connection connection)
+    {
+        this.connection = connection;
+    }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
     {
-        if (msg instanceof HttpResponse) {
-            try {
-                HttpResponse response = (HttpResponse) msg;
-                HttpRequest request = ctx.attr(InboundPoliteHTTPHandler.KEY_REQUEST).get();
-
+        // Interim responses (eg. 103 Early Hints) are followed by the real one, which is what we're interested in.
+        if (msg instanceof HttpResponse && ((HttpResponse) msg).status().codeClass() != HttpStatusClass.INFORMATIONAL) {
+            HttpResponse response = (HttpResponse) msg;
+            // Responses are written in the order the requests came in, so this is the one being responded to.
+            HttpRequest request = connection.currentRequest();
+            if (request != null) {
                 // Fixup http version of response if needed.
                 if (!response.protocolVersion().equals(request.protocolVersion())) {
                     response.setProtocolVersion(request.protocolVersion());
                 }
 
                 // Netty does not automatically add Content-Length or Transfer-Encoding: chunked. So we add here if missing.
-                if (!HttpUtil.isContentLengthSet(response) && !HttpUtil.isTransferEncodingChunked(response)) {
+                // Except where the response can't have a body.
+                if (!HttpUtil.isContentLengthSet(response) && !HttpUtil.isTransferEncodingChunked(response)
+                        && !response.status().equals(HttpResponseStatus.NOT_MODIFIED)
+                        && !response.status().equals(HttpResponseStatus.NO_CONTENT)) {
                     response.headers().add(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
                 }
 
                 // We MUST set a Connection: keep-alive response header for HTTP/1.0 clients as otherwise
                 // some of them fail to receive the payload, and/or can't re-use the connection (found this with ab).
-                if (HttpUtil.isKeepAlive(request)) {
+                if (pendingClose != null) {
+                    // We're closing once the responses in flight are done, so the client shouldn't send any more.
+                    HttpUtil.setKeepAlive(response, false);
+                }
+                else if (HttpUtil.isKeepAlive(request)) {
                     // Set a Connection: keep-alive header on response.
                     HttpUtil.setKeepAlive(response, true);
                 } else {
@@ -51,13 +72,9 @@ public class OutboundPoliteHTTPHandler extends ChannelOutboundHandlerAdapter
                     }
 
                     // TODO - Flag to close the connection.
-                    ctx.attr(KEY_SHOULD_CLOSE).set(Boolean.TRUE);
+                    shouldClose = true;
                 }
             }
-            finally {
-                // Cleanup.
-                ctx.attr(InboundPoliteHTTPHandler.KEY_REQUEST).remove();
-            }
         }
 
 
@@ -69,9 +86,8 @@ public class OutboundPoliteHTTPHandler extends ChannelOutboundHandlerAdapter
         finally {
             if (msg instanceof LastHttpContent) {
                 // Response is finished. So if needed, close the connection.
-                Boolean shouldClose = ctx.attr(KEY_SHOULD_CLOSE).get();
-                if (shouldClose != null && shouldClose.booleanValue()) {
-                    ctx.attr(KEY_CLOSE_NOW).set(Boolean.TRUE);
+                if (shouldClose) {
+                    closeNow = true;
                 }
             }
         }
@@ -85,9 +101,16 @@ public class OutboundPoliteHTTPHandler extends ChannelOutboundHandlerAdapter
         }
         finally {
             // Response is finished. So if needed, close the connection.
-            Boolean closeNow = ctx.attr(KEY_CLOSE_NOW).get();
-            if (closeNow != null && closeNow.booleanValue()) {
-                ctx.close();
+            if (closeNow) {
+                ctx.close(pendingClose != null ? pendingClose : ctx.newPromise());
+                pendingClose = null;
+            }
+            else if (pendingClose != null && connection.isIdle()) {
+                // This flush can be nested in the one that completed the last response, whose writes would be lost
+                // if we closed underneath it. So once it's done.
+                ChannelPromise promise = pendingClose;
+                pendingClose = null;
+                ctx.executor().execute(() -> ctx.close(promise));
             }
         }
     }
@@ -95,15 +118,26 @@ public class OutboundPoliteHTTPHandler extends ChannelOutboundHandlerAdapter
     @Override
     public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception
     {
-        // We choose when to close the channel ourselves, so ignore this invocation.
+        if (connection.isIdle() || !ctx.channel().isActive()) {
+            super.close(ctx, promise);
+            return;
+        }
+
+        // Not in the middle of a response, but once they're all written.
+        if (pendingClose == null) {
+            pendingClose = promise;
+        }
+        else {
+            ctx.channel().closeFuture().addListener(f -> promise.trySuccess());
+        }
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
     {
-        HttpRequest request = ctx.attr(InboundPoliteHTTPHandler.KEY_REQUEST).get();
+        HttpRequest request = connection.currentRequest();
 
-        LOG.error("Unhandled exception caught. uri=" + request.uri(), cause);
+        LOG.error("Unhandled exception caught. uri=" + (request == null ? "not known" : request.uri()), cause);
 
         Utils.sendDefaultErrorResponse(ctx);
 
@@ -0,0 +1,182 @@
+package com.kerumai.chunking;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A page made up of an ordered list of {@link Fragment}s, which the {@link PageComposer} sends as separate chunks
+ * so that the early ones reach the browser while the later ones are still being produced.
+ *
+ * A page can also have pagelets, BigPipe style. The fragments then make up the skeleton of the page, containing a
+ * {@link #placeholder(String)} for each pagelet. Once the skeleton has been sent, each pagelet is streamed in
+ * whatever order its content becomes available, as an inline script that fills in its placeholder. Finally the
+ * closing html is sent.
+ */
+public class Page
+{
+    private static final String PLACEHOLDER_ID_PREFIX = "pagelet-";
+
+    private final String name;
+    private final String contentType;
+    private final List<Fragment> fragments = new ArrayList<>();
+    private final List<Fragment> pagelets = new ArrayList<>();
+    private byte[] closing = new byte[0];
+    private int maxConcurrentPagelets = Integer.MAX_VALUE;
+    private volatile EarlyHints earlyHints = EarlyHints.NONE;
+    /** The page's response heads by content encoding, built when first needed, and again once the hints change. */
+    private volatile AtomicReferenceArray<ResponseHead> responseHeads = newResponseHeads();
+    private FlushStrategy flushStrategy = null;
+
+    /**
+     * @param name names the page in its properties, eg. server.page.[name].flush.strategy.
+     */
+    public Page(String name, String contentType)
+    {
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    public Page fragment(Fragment fragment)
+    {
+        fragments.add(fragment);
+        return this;
+    }
+
+    /**
+     * Add a pagelet, which will fill the placeholder with the same name as the fragment.
+     */
+    public Page pagelet(Fragment pagelet)
+    {
+        pagelets.add(pagelet);
+        return this;
+    }
+
+    /**
+     * The html sent after all of the pagelets.
+     */
+    public Page closing(String html)
+    {
+        this.closing = html.getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+
+    /**
+     * Limit how many pagelets are being produced at once for each response of this page. The rest are started
+     * one at a time as earlier ones complete.
+     */
+    public Page maxConcurrentPagelets(int max)
+    {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1. max=" + max);
+        }
+        this.maxConcurrentPagelets = max;
+        return this;
+    }
+
+    /**
+     * The subresources to hint to the browser before the response head, usually those referenced by the first
+     * fragment. Can be replaced while the page is being served, eg. when the fragment changes.
+     */
+    public Page earlyHints(EarlyHints earlyHints)
+    {
+        this.earlyHints = earlyHints;
+        this.responseHeads = newResponseHeads();
+        return this;
+    }
+
+    /**
+     * When to flush the page's chunks, unless a strategy is configured for it, see {@link FlushStrategy}.
+     */
+    public Page flushStrategy(FlushStrategy flushStrategy)
+    {
+        this.flushStrategy = flushStrategy;
+        return this;
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    public String contentType()
+    {
+        return contentType;
+    }
+
+    public List<Fragment> fragments()
+    {
+        return Collections.unmodifiableList(fragments);
+    }
+
+    public List<Fragment> pagelets()
+    {
+        return Collections.unmodifiableList(pagelets);
+    }
+
+    public byte[] closing()
+    {
+        return closing;
+    }
+
+    public int maxConcurrentPagelets()
+    {
+        return maxConcurrentPagelets;
+    }
+
+    public EarlyHints earlyHints()
+    {
+        return earlyHints;
+    }
+
+    public FlushStrategy flushStrategy()
+    {
+        return flushStrategy;
+    }
+
+    /**
+     * @return the head of the page's responses in the content encoding, along with its early hints.
+     */
+    public ResponseHead responseHead(ContentEncoding encoding)
+    {
+        AtomicReferenceArray<ResponseHead> heads = responseHeads;
+        ResponseHead head = heads.get(encoding.ordinal());
+        if (head == null) {
+            HttpHeaders headers = new DefaultHttpHeaders();
+            headers.set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            if (encoding != ContentEncoding.IDENTITY) {
+                headers.set(HttpHeaderNames.CONTENT_ENCODING, encoding.headerValue());
+            }
+            earlyHints.addTo(headers);
+            head = new ResponseHead(HttpResponseStatus.OK, headers);
+            heads.set(encoding.ordinal(), head);
+        }
+        return head;
+    }
+
+    private static AtomicReferenceArray<ResponseHead> newResponseHeads()
+    {
+        return new AtomicReferenceArray<>(ContentEncoding.values().length);
+    }
+
+    /**
+     * @return the html for a pagelet's placeholder, for use in the page skeleton.
+     */
+    public static String placeholder(String pageletName)
+    {
+        return "<div id=\"" + placeholderId(pageletName) + "\"></div>";
+    }
+
+    static String placeholderId(String pageletName)
+    {
+        return PLACEHOLDER_ID_PREFIX + pageletName;
+    }
+}
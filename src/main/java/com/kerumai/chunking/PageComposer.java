@@ -0,0 +1,504 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicLongProperty;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes a {@link Page} as a response, composing it from its fragments as they become available.
+ *
+ * All fragments are started at once. In chunked mode each fragment is written as soon as it and all of the fragments
+ * before it have resolved, and flushed according to the page's {@link FlushStrategy}, by default as soon as nothing
+ * more is ready behind it. So the head of the page goes out immediately even while slow data is still being fetched.
+ * Otherwise the whole page is sent in one go with a Content-Length once everything is resolved.
+ *
+ * Pagelets are started along with the fragments (subject to the page's concurrency limit), but are written in the
+ * order they complete, once the skeleton of the page is out.
+ *
+ * If gzip is negotiated, each fragment is compressed as its own block of a single gzip stream, so they can still be
+ * flushed independently. Asset fragments use their precompressed block, the rest are compressed as they're written.
+ */
+public class PageComposer
+{
+    private static final Logger LOG = LoggerFactory.getLogger(PageComposer.class);
+    private static final DynamicLongProperty DEFAULT_TIMEOUT_MS = new DynamicLongProperty("server.page.fragment.timeout", 2000);
+
+    private static final String PAGELET_BOOTSTRAP = "<script>function bigPipeFill(id, html) {"
+            + " var el = document.getElementById(id); if (el) { el.innerHTML = html; } }</script>";
+
+    private final AssetCache assets;
+
+    public PageComposer(AssetCache assets)
+    {
+        this.assets = assets;
+    }
+
+    public void compose(ChannelHandlerContext ctx, HttpExchange exchange, Page page, boolean chunked)
+    {
+        new Composition(ctx, exchange, page, chunked).start();
+    }
+
+    /**
+     * The state of composing one response. Only touched from the channel's event loop.
+     *
+     * Fragments and pagelets share the resolved and timeouts arrays, with the pagelets after the fragments.
+     */
+    private class Composition
+    {
+        private final ChannelHandlerContext ctx;
+        private final HttpExchange exchange;
+        private final Page page;
+        private final List<Fragment> fragments;
+        private final List<Fragment> pagelets;
+        private final boolean chunked;
+
+        private HttpResponse response = null;
+        private StreamingBody body = null;
+        private GzipStream gzip = null;
+        private FlushStrategy flushStrategy = null;
+        private long unflushedBytes = 0;
+        private ScheduledFuture<?> flushTimer = null;
+
+        /** Resolved but not yet written fragments and pagelets. Either an Asset or a ByteBuf. */
+        private final Object[] resolved;
+        private final ScheduledFuture<?>[] timeouts;
+        private int nextToWrite = 0;
+        private final ArrayDeque<Integer> completedPagelets = new ArrayDeque<>();
+        private int pageletsStarted = 0;
+        private int pageletsInProgress = 0;
+        private int pageletsWritten = 0;
+
+        private CompositeByteBuf wholePage = null;
+        private boolean finished = false;
+        private final ChannelFutureListener closeListener;
+
+        Composition(ChannelHandlerContext ctx, HttpExchange exchange, Page page, boolean chunked)
+        {
+            this.ctx = ctx;
+            this.exchange = exchange;
+            this.page = page;
+            this.fragments = page.fragments();
+            this.pagelets = page.pagelets();
+            this.chunked = chunked;
+            this.resolved = new Object[fragments.size() + pagelets.size()];
+            this.timeouts = new ScheduledFuture<?>[resolved.length];
+            this.closeListener = f -> ctx.executor().execute(this::abort);
+        }
+
+        void start()
+        {
+            negotiateEncoding();
+            response = page.responseHead(gzip != null ? ContentEncoding.GZIP : ContentEncoding.IDENTITY).newResponse();
+
+            // Get all the static fragments first, so that if any are missing we fail before anything is written. All
+            // from the same snapshot, so they're consistent with each other even if they're being reloaded.
+            AssetCache.Snapshot snapshot = assets.snapshot();
+            for (int i = 0; i < resolved.length; i++) {
+                Fragment fragment = fragment(i);
+                if (fragment.isAsset()) {
+                    Asset asset = snapshot.get(fragment.assetPath());
+                    if (asset == null) {
+                        releaseResolved();
+                        throw new IllegalStateException("No asset found. path=" + fragment.assetPath());
+                    }
+                    resolved[i] = asset;
+                }
+            }
+
+            // The hints are in the response head too, as a Link header, see Page.responseHead().
+            EarlyHints hints = page.earlyHints();
+            if (!hints.isEmpty() && EarlyHints.canSendTo(exchange.request())) {
+                // Only worth a flush of its own if the real response head isn't about to follow.
+                exchange.write(hints.newInterimResponse());
+                if (!chunked || resolved[0] == null) {
+                    exchange.earlyFlush();
+                }
+            }
+
+            if (chunked) {
+                response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+                exchange.write(response);
+                body = new StreamingBody(exchange, StreamingBody.PAGES);
+                flushStrategy = FlushStrategy.forPage(page);
+            }
+            else {
+                wholePage = Unpooled.compositeBuffer(resolved.length + 2);
+            }
+
+            ctx.channel().closeFuture().addListener(closeListener);
+
+            for (int i = 0; i < fragments.size(); i++) {
+                if (!fragments.get(i).isAsset()) {
+                    startFragment(i);
+                }
+            }
+            startPagelets();
+
+            writeResolved();
+        }
+
+        private Fragment fragment(int index)
+        {
+            return isPagelet(index) ? pagelets.get(index - fragments.size()) : fragments.get(index);
+        }
+
+        private boolean isPagelet(int index)
+        {
+            return index >= fragments.size();
+        }
+
+        /**
+         * Start as many more of the pagelets as the page's concurrency limit allows. Asset pagelets are already
+         * available, so don't count towards it.
+         */
+        private void startPagelets()
+        {
+            while (pageletsStarted < pagelets.size() && pageletsInProgress < page.maxConcurrentPagelets()) {
+                int index = fragments.size() + pageletsStarted;
+                pageletsStarted++;
+                if (fragment(index).isAsset()) {
+                    completedPagelets.add(index);
+                }
+                else {
+                    pageletsInProgress++;
+                    startFragment(index);
+                }
+            }
+        }
+
+        private void startFragment(int index)
+        {
+            Fragment fragment = fragment(index);
+            long timeoutMs = fragment.timeoutMs() > 0 ? fragment.timeoutMs() : DEFAULT_TIMEOUT_MS.get();
+            timeouts[index] = ctx.executor().schedule(
+                    () -> resolve(index, null, new TimeoutException("Fragment timed out after " + timeoutMs + " ms")),
+                    timeoutMs, TimeUnit.MILLISECONDS);
+
+            CompletableFuture<ByteBuf> future;
+            try {
+                future = fragment.source().produce(ctx, exchange);
+            }
+            catch (Exception e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+
+            future.whenComplete((content, error) -> {
+                if (ctx.executor().inEventLoop()) {
+                    resolve(index, content, error);
+                }
+                else {
+                    ctx.executor().execute(() -> resolve(index, content, error));
+                }
+            });
+        }
+
+        private void resolve(int index, ByteBuf content, Throwable error)
+        {
+            if (finished || timeouts[index] == null) {
+                // Too late, eg. it already timed out.
+                ReferenceCountUtil.release(content);
+                return;
+            }
+
+            timeouts[index].cancel(false);
+            timeouts[index] = null;
+
+            if (error != null || content == null) {
+                Fragment fragment = fragment(index);
+                LOG.warn("Using fallback for fragment. fragment=" + fragment.name() + ", uri=" + exchange.request().uri()
+                        + ", error=" + error);
+                content = fragment.fallback();
+            }
+
+            resolved[index] = content;
+            if (isPagelet(index)) {
+                completedPagelets.add(index);
+                pageletsInProgress--;
+                startPagelets();
+            }
+            writeResolved();
+        }
+
+        /**
+         * Write out as many consecutive resolved fragments as we can, starting from the next one due, followed by
+         * any completed pagelets once all the fragments are out.
+         */
+        private void writeResolved()
+        {
+            if (finished) {
+                return;
+            }
+
+            while (nextToWrite < fragments.size() && resolved[nextToWrite] != null) {
+                if (paused()) {
+                    break;
+                }
+                write(encode(resolved[nextToWrite]));
+                resolved[nextToWrite] = null;
+                nextToWrite++;
+                flushIfDue();
+            }
+
+            if (nextToWrite == fragments.size()) {
+                while (!completedPagelets.isEmpty() && !paused()) {
+                    int index = completedPagelets.poll();
+                    write(encodePagelet(index, resolved[index]));
+                    resolved[index] = null;
+                    pageletsWritten++;
+                    flushIfDue();
+                }
+
+                if (pageletsWritten == pagelets.size()) {
+                    finish();
+                }
+            }
+        }
+
+        /**
+         * Whether more is ready to be written straight after what just was, counting the end of the page.
+         */
+        private boolean moreReady()
+        {
+            if (nextToWrite < fragments.size()) {
+                return resolved[nextToWrite] != null;
+            }
+            return !completedPagelets.isEmpty() || pageletsWritten == pagelets.size();
+        }
+
+        /**
+         * Ask the page's flush strategy whether what's been written so far should be flushed now, later if nothing
+         * more is written in the meantime, or held on to.
+         */
+        private void flushIfDue()
+        {
+            if (!chunked) {
+                return;
+            }
+
+            long delayMs = flushStrategy.flushDelayMs(ctx.channel(), unflushedBytes, moreReady());
+            cancelFlushTimer();
+            if (delayMs == 0) {
+                flush();
+            }
+            else if (delayMs > 0) {
+                flushTimer = ctx.executor().schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void flush()
+        {
+            cancelFlushTimer();
+            if (finished || unflushedBytes == 0) {
+                return;
+            }
+            unflushedBytes = 0;
+            exchange.earlyFlush();
+        }
+
+        private void cancelFlushTimer()
+        {
+            if (flushTimer != null) {
+                flushTimer.cancel(false);
+                flushTimer = null;
+            }
+        }
+
+        /**
+         * Whether to hold off writing any more until the client has caught up with what's already been written.
+         * The fragments are held as they were resolved (cached assets are shared), rather than encoded.
+         */
+        private boolean paused()
+        {
+            if (body == null || body.isWritable()) {
+                return false;
+            }
+            // It can't catch up on what's been held back from it.
+            flush();
+            body.whenWritable(this::writeResolved);
+            return true;
+        }
+
+        private void write(ByteBuf chunk)
+        {
+            if (chunked) {
+                unflushedBytes += chunk.readableBytes();
+                body.write(chunk);
+            }
+            else {
+                int length = chunk.readableBytes();
+                wholePage.addComponent(chunk);
+                wholePage.writerIndex(wholePage.writerIndex() + length);
+            }
+        }
+
+        private void finish()
+        {
+            finished = true;
+            cancelFlushTimer();
+            ctx.channel().closeFuture().removeListener(closeListener);
+
+            if (page.closing().length > 0) {
+                write(encode(Unpooled.wrappedBuffer(page.closing())));
+            }
+            if (gzip != null) {
+                write(gzip.finish());
+            }
+
+            if (chunked) {
+                exchange.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            }
+            else {
+                FullHttpResponse fullResponse = ResponseHead.toFullResponse(response, wholePage);
+                fullResponse.headers().set(HttpHeaderNames.CONTENT_LENGTH, wholePage.readableBytes());
+                wholePage = null;
+                exchange.writeAndFlush(fullResponse);
+            }
+        }
+
+        private ByteBuf encode(Object fragment)
+        {
+            if (fragment instanceof Asset) {
+                Asset asset = (Asset) fragment;
+                try {
+                    return gzip == null ? asset.content() : gzip.encode(asset.deflateBlock());
+                }
+                finally {
+                    asset.release();
+                }
+            }
+
+            ByteBuf content = (ByteBuf) fragment;
+            if (gzip == null) {
+                return content;
+            }
+
+            DeflateBlock block = DeflateBlock.compress(content, ctx.alloc());
+            content.release();
+            try {
+                return gzip.encode(block);
+            }
+            finally {
+                block.release();
+            }
+        }
+
+        /**
+         * Wrap a pagelet's html in a script that fills in its placeholder.
+         */
+        private ByteBuf encodePagelet(int index, Object pagelet)
+        {
+            ByteBuf content = pagelet instanceof Asset ? ((Asset) pagelet).content() : (ByteBuf) pagelet;
+            String html = content.toString(StandardCharsets.UTF_8);
+            content.release();
+            if (pagelet instanceof Asset) {
+                ((Asset) pagelet).release();
+            }
+
+            StringBuilder script = new StringBuilder(html.length() + 128);
+            if (pageletsWritten == 0) {
+                script.append(PAGELET_BOOTSTRAP);
+            }
+            script.append("<script>bigPipeFill(\"").append(Page.placeholderId(fragment(index).name())).append("\", \"");
+            appendJsString(script, html);
+            script.append("\");</script>");
+
+            return encode(Unpooled.copiedBuffer(script, StandardCharsets.UTF_8));
+        }
+
+        private void negotiateEncoding()
+        {
+            String acceptEncoding = exchange.request().headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+            if (ContentEncoding.negotiate(acceptEncoding, false, true) == ContentEncoding.GZIP) {
+                gzip = new GzipStream();
+            }
+        }
+
+        /**
+         * The connection has gone away, so stop waiting on fragments and free up anything we were holding on to.
+         */
+        private void abort()
+        {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            cancelFlushTimer();
+
+            for (ScheduledFuture<?> timeout : timeouts) {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+            releaseResolved();
+            if (wholePage != null) {
+                wholePage.release();
+                wholePage = null;
+            }
+        }
+
+        private void releaseResolved()
+        {
+            for (int i = 0; i < resolved.length; i++) {
+                ReferenceCountUtil.release(resolved[i]);
+                resolved[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Escape html for use inside a double-quoted javascript string in an inline script.
+     */
+    static void appendJsString(StringBuilder sb, String s)
+    {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '<':
+                    // So that eg. a </script> in the html can't end the script early.
+                    sb.append("\\u003c");
+                    break;
+                case '\u2028':
+                    sb.append("\\u2028");
+                    break;
+                case '\u2029':
+                    sb.append("\\u2029");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        sb.append(c);
+                    }
+            }
+        }
+    }
+}
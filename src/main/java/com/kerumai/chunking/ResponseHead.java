@@ -0,0 +1,204 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * The status and headers that a kind of response always has, eg. those of a variant of a static asset or of a page,
+ * encoded once up front rather than for every response.
+ *
+ * Responses made from it with {@link #newResponse()} or {@link #newFullResponse(ByteBuf)} only carry their own
+ * headers, ie. those that differ from response to response such as Content-Length and Connection. When it's written
+ * out the {@link ServerCodec} copies the pre-encoded bytes in and then encodes just those. On HTTP/2 the
+ * {@link Http2ResponseWriter} adds a copy of the headers already converted for it.
+ *
+ * The framing headers (Content-Length, Transfer-Encoding and Connection) can't be pre-encoded, as the handlers that
+ * deal with framing only look for them in the response's own headers.
+ */
+public final class ResponseHead
+{
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final Http2Headers http2Headers;
+    /** The HTTP/1.1 status line, and then the header lines. Both shared, read-only and never released. */
+    private final ByteBuf statusLine;
+    private final ByteBuf headerLines;
+
+    public ResponseHead(HttpResponseStatus status, HttpHeaders headers)
+    {
+        for (CharSequence name : new CharSequence[]{HttpHeaderNames.CONTENT_LENGTH, HttpHeaderNames.TRANSFER_ENCODING,
+                HttpHeaderNames.CONNECTION}) {
+            if (headers.contains(name)) {
+                throw new IllegalArgumentException("Framing headers can't be pre-encoded. header=" + name);
+            }
+        }
+
+        this.status = status;
+        this.headers = new DefaultHttpHeaders().set(headers);
+        this.http2Headers = HttpConversionUtil.toHttp2Headers(headers, false);
+
+        this.statusLine = encode(HttpVersion.HTTP_1_1 + " " + status + "\r\n");
+        StringBuilder lines = new StringBuilder(256);
+        for (Map.Entry<String, String> header : headers) {
+            lines.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        this.headerLines = encode(lines);
+    }
+
+    private static ByteBuf encode(CharSequence s)
+    {
+        byte[] bytes = s.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteBuf buf = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+        return Unpooled.unreleasableBuffer(Unpooled.unmodifiableBuffer(buf));
+    }
+
+    public HttpResponseStatus status()
+    {
+        return status;
+    }
+
+    /**
+     * @return the pre-encoded headers, which mustn't be modified.
+     */
+    public HttpHeaders headers()
+    {
+        return headers;
+    }
+
+    /**
+     * @return a response head with this status and these headers, to add its own to.
+     */
+    public HttpResponse newResponse()
+    {
+        return new Response(this, HttpVersion.HTTP_1_1, status);
+    }
+
+    /**
+     * @return a whole response with this status and these headers, to add its own to.
+     */
+    public FullHttpResponse newFullResponse(ByteBuf content)
+    {
+        return new FullResponse(this, HttpVersion.HTTP_1_1, status, content);
+    }
+
+    /**
+     * @return the pre-encoded head that the response was made from, or null if it wasn't.
+     */
+    static ResponseHead of(Object msg)
+    {
+        return msg instanceof Carrier ? ((Carrier) msg).responseHead() : null;
+    }
+
+    /**
+     * @return a whole response with the version, status and headers of the given head, and its pre-encoded ones if
+     * it has any.
+     */
+    static FullHttpResponse toFullResponse(HttpResponse head, ByteBuf content)
+    {
+        ResponseHead responseHead = of(head);
+        FullHttpResponse response = responseHead != null
+                ? new FullResponse(responseHead, head.protocolVersion(), head.status(), content)
+                : new DefaultFullHttpResponse(head.protocolVersion(), head.status(), content);
+        response.headers().set(head.headers());
+        return response;
+    }
+
+    /**
+     * Write the status line and the pre-encoded headers of a response made from this head, as HTTP/1.
+     */
+    void encodeTo(HttpResponse response, ByteBuf buf)
+    {
+        if (response.status() == status && response.protocolVersion().equals(HttpVersion.HTTP_1_1)) {
+            buf.writeBytes(statusLine, statusLine.readerIndex(), statusLine.readableBytes());
+        }
+        else {
+            // It's been changed since, eg. for an HTTP/1.0 client.
+            buf.writeBytes((response.protocolVersion() + " " + response.status()).getBytes(StandardCharsets.US_ASCII));
+            buf.writeBytes(CRLF);
+        }
+        buf.writeBytes(headerLines, headerLines.readerIndex(), headerLines.readableBytes());
+    }
+
+    /**
+     * Add the pre-encoded headers to those of an HTTP/2 response made from this head.
+     */
+    void addTo(Http2Headers headers)
+    {
+        headers.add(http2Headers);
+    }
+
+    /**
+     * A message made from a pre-encoded head.
+     */
+    interface Carrier
+    {
+        ResponseHead responseHead();
+    }
+
+    private static class Response extends DefaultHttpResponse implements Carrier
+    {
+        private final ResponseHead responseHead;
+
+        Response(ResponseHead responseHead, HttpVersion version, HttpResponseStatus status)
+        {
+            super(version, status);
+            this.responseHead = responseHead;
+        }
+
+        @Override
+        public ResponseHead responseHead()
+        {
+            return responseHead;
+        }
+    }
+
+    private static class FullResponse extends DefaultFullHttpResponse implements Carrier
+    {
+        private final ResponseHead responseHead;
+
+        FullResponse(ResponseHead responseHead, HttpVersion version, HttpResponseStatus status, ByteBuf content)
+        {
+            super(version, status, content);
+            this.responseHead = responseHead;
+        }
+
+        @Override
+        public ResponseHead responseHead()
+        {
+            return responseHead;
+        }
+
+        @Override
+        public FullHttpResponse copy(ByteBuf newContent)
+        {
+            FullResponse copy = new FullResponse(responseHead, protocolVersion(), status(),
+                    newContent == null ? Unpooled.buffer(0) : newContent);
+            copy.headers().set(headers());
+            copy.trailingHeaders().set(trailingHeaders());
+            return copy;
+        }
+
+        @Override
+        public FullHttpResponse copy()
+        {
+            return copy(content().copy());
+        }
+
+        @Override
+        public FullHttpResponse duplicate()
+        {
+            FullResponse duplicate = new FullResponse(responseHead, protocolVersion(), status(), content().duplicate());
+            duplicate.headers().set(headers());
+            duplicate.trailingHeaders().set(trailingHeaders());
+            return duplicate;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.kerumai.chunking;
+
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Handles the requests for a route registered with the {@link Router}, by writing a response to the channel.
+ *
+ * Handlers are shared by all connections, so must not hold any per-request state.
+ */
+public interface RouteHandler
+{
+    void handle(ChannelHandlerContext ctx, HttpExchange exchange) throws Exception;
+}
@@ -0,0 +1,169 @@
+package com.kerumai.chunking;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps request paths to {@link RouteHandler}s.
+ *
+ * Three kinds of route can be registered:
+ * <ul>
+ *     <li>exact - eg. "/clean/", matched with a single hash lookup.</li>
+ *     <li>prefix - eg. "/clean/", which matches any path below it such as "/clean/css/main.css".</li>
+ *     <li>pattern - eg. "/pages/{name}/", where each {param} matches one path segment and is made available
+ *     via {@link HttpExchange#pathParam(String)}.</li>
+ * </ul>
+ *
+ * Prefix and pattern routes are compiled into a trie of path segments, so the cost of a lookup depends only on
+ * the depth of the path, not on how many routes are registered. Exact routes take precedence, then the most
+ * specific pattern, then the longest prefix.
+ *
+ * Each route is named after what it was registered with (with a * after a prefix, eg. "/clean/*"), which is made
+ * available via {@link HttpExchange#route()}.
+ *
+ * Routes should all be registered up front, before the router is shared across event loops.
+ */
+public class Router
+{
+    private final Map<String, Route> exactRoutes = new HashMap<>();
+    private final Node root = new Node();
+
+    public Router exact(String path, RouteHandler handler)
+    {
+        checkPath(path);
+        if (exactRoutes.put(path, new Route(path, handler)) != null) {
+            throw new IllegalArgumentException("Duplicate route. path=" + path);
+        }
+        return this;
+    }
+
+    public Router prefix(String prefix, RouteHandler handler)
+    {
+        checkPath(prefix);
+        if (!prefix.endsWith("/")) {
+            throw new IllegalArgumentException("Prefix routes must end with a /. prefix=" + prefix);
+        }
+
+        Node node = compile(prefix.substring(0, prefix.length() - 1));
+        if (node.prefixHandler != null) {
+            throw new IllegalArgumentException("Duplicate route. prefix=" + prefix);
+        }
+        node.prefixHandler = new Route(prefix + "*", handler);
+        return this;
+    }
+
+    public Router pattern(String pattern, RouteHandler handler)
+    {
+        checkPath(pattern);
+        Node node = compile(pattern);
+        if (node.handler != null) {
+            throw new IllegalArgumentException("Duplicate route. pattern=" + pattern);
+        }
+        node.handler = new Route(pattern, handler);
+        return this;
+    }
+
+    /**
+     * Find the handler for the exchange's path, capturing the route's name and any path params into the exchange.
+     *
+     * @return the handler, or null if no route matches.
+     */
+    public RouteHandler route(HttpExchange exchange)
+    {
+        String path = exchange.path();
+        Route route = exactRoutes.get(path);
+        if (route == null && path.startsWith("/")) {
+            route = match(root, path, 1, exchange);
+        }
+        if (route == null) {
+            return null;
+        }
+        exchange.setRoute(route.name);
+        return route.handler;
+    }
+
+    private Route match(Node node, String path, int start, HttpExchange exchange)
+    {
+        int end = path.indexOf('/', start);
+        boolean lastSegment = end == -1;
+        if (lastSegment) {
+            end = path.length();
+        }
+        String segment = path.substring(start, end);
+
+        Node literal = node.children.get(segment);
+        if (literal != null) {
+            Route route = lastSegment ? literal.handler : match(literal, path, end + 1, exchange);
+            if (route != null) {
+                return route;
+            }
+        }
+
+        Node param = node.paramChild;
+        if (param != null && !segment.isEmpty()) {
+            exchange.setPathParam(param.paramName, segment);
+            Route route = lastSegment ? param.handler : match(param, path, end + 1, exchange);
+            if (route != null) {
+                return route;
+            }
+            exchange.removePathParam(param.paramName);
+        }
+
+        // We're below this node, so its prefix route (if any) applies.
+        return node.prefixHandler;
+    }
+
+    private Node compile(String pattern)
+    {
+        Node node = root;
+        for (String segment : pattern.substring(1).split("/", -1)) {
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (node.paramChild == null) {
+                    node.paramChild = new Node();
+                    node.paramChild.paramName = name;
+                }
+                else if (!node.paramChild.paramName.equals(name)) {
+                    throw new IllegalArgumentException("Conflicting path param names. pattern=" + pattern
+                            + ", names=" + node.paramChild.paramName + "," + name);
+                }
+                node = node.paramChild;
+            }
+            else {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+        }
+        return node;
+    }
+
+    private static void checkPath(String path)
+    {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("Routes must start with a /. path=" + path);
+        }
+    }
+
+    private static class Node
+    {
+        private final Map<String, Node> children = new HashMap<>();
+        private Node paramChild = null;
+        private String paramName = null;
+
+        /** Handler for paths ending exactly at this node. */
+        private Route handler = null;
+        /** Handler for any path below this node. */
+        private Route prefixHandler = null;
+    }
+
+    private static class Route
+    {
+        private final String name;
+        private final RouteHandler handler;
+
+        Route(String name, RouteHandler handler)
+        {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+}
@@ -3,14 +3,17 @@ package com.kerumai.chunking;
 
 import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.logging.LogLevel;
-import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.FastThreadLocalThread;
 import org.slf4j.Logger;
@@ -30,18 +33,35 @@ import java.util.concurrent.TimeUnit;
 public class Server
 {
     private static final Logger LOG = LoggerFactory.getLogger(Server.class);
-    private static final LoggingHandler nettyLogger = new LoggingHandler("server.nettylog", LogLevel.INFO);
 
     private static final DynamicIntProperty SERVER_PORT = new DynamicIntProperty("server.netty.port", 7001);
     private static final DynamicIntProperty SERVER_SOCKET_TIMEOUT = new DynamicIntProperty("server.netty.connection.socket.timeout", 45 * 000);
     private static final DynamicIntProperty SERVER_CONN_IDLE_TIMEOUT_SECS = new DynamicIntProperty("server.netty.connection.idle.timeout", 30);
     private static final DynamicBooleanProperty USE_EPOLL = new DynamicBooleanProperty("server.netty.socket.epoll", false);
+    private static final DynamicIntProperty LISTENERS = new DynamicIntProperty("server.netty.socket.listeners", 1);
+    private static final DynamicIntProperty BACKLOG = new DynamicIntProperty("server.netty.socket.backlog", 128);
+    private static final DynamicIntProperty TCP_FASTOPEN_QUEUE = new DynamicIntProperty("server.netty.socket.tcp.fastopen", 0);
+    private static final DynamicBooleanProperty TCP_NODELAY = new DynamicBooleanProperty("server.netty.socket.tcp.nodelay", true);
+    private static final DynamicIntProperty WRITE_BUFFER_HIGH_WATER_MARK = new DynamicIntProperty("server.netty.write.buffer.high", 64 * 1024);
+    private static final DynamicIntProperty WRITE_BUFFER_LOW_WATER_MARK = new DynamicIntProperty("server.netty.write.buffer.low", 32 * 1024);
+    private static final DynamicBooleanProperty PRELOAD_ASSETS = new DynamicBooleanProperty("server.assets.preload", true);
+    private static final DynamicLongProperty DRAIN_TIMEOUT_MS = new DynamicLongProperty("server.connections.drain.timeout.ms", 30 * 1000);
 
     /**
      * Our {@link ServerGroup}. Multiple proxy servers can share the same
      * ServerGroup in order to reuse threads and other such resources.
      */
     private ServerGroup serverGroup;
+    private final ConnectionManager connectionManager = new ConnectionManager();
+    private volatile List<Channel> serverChannels = new ArrayList<>();
+    private boolean stopped = false;
+
+    /** Static assets and page fragments, shared by all connections. */
+    private final AssetFiles assetFiles = new AssetFiles();
+    private final AssetCache assetCache = new AssetCache(assetFiles);
+    private final AssetWatcher assetWatcher = new AssetWatcher(assetFiles, assetCache);
+    private final OffloadExecutor offload = new OffloadExecutor("app");
+    private final Router router = new AppRoutes(assetCache, offload).router();
 
     public static void main(String[] args)
     {
@@ -52,59 +72,126 @@ public class Server
     {
         int port = SERVER_PORT.get();
         LOG.info("Starting server at port: " + port);
+
+        boolean epoll = USE_EPOLL.get();
+        if (epoll && !Epoll.isAvailable()) {
+            LOG.warn("Native epoll transport requested, but isn't available, so falling back to NIO.", Epoll.unavailabilityCause());
+            epoll = false;
+        }
+
+        // Multiple listening sockets on the same port need SO_REUSEPORT, which only the native transport has. The
+        // kernel then spreads incoming connections across them, each accepted on its own thread.
+        int listeners = epoll ? Math.max(1, LISTENERS.get()) : 1;
+
         serverGroup = new ServerGroup("ChunkingServer");
-        serverGroup.initializeTransport();
+        serverGroup.initializeTransport(epoll, listeners);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "Chunking-Server-JVM-shutdown-hook"));
+        router.exact("/metrics", new ServerMetrics.Endpoint(serverGroup.clientToProxyWorkerPool));
+        // Watching first, so that the preloaded assets can be served from their files.
+        assetWatcher.start();
+        if (PRELOAD_ASSETS.get()) {
+            assetCache.preload("/web");
+        }
+        AccessLog.start();
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap().group(
                     serverGroup.clientToProxyBossPool,
                     serverGroup.clientToProxyWorkerPool);
 
-
-            LOG.info("Server listening with TCP transport");
-            if (USE_EPOLL.get()) {
-                serverBootstrap.channel(EpollServerSocketChannel.class);
+            // Socket configuration.
+            serverBootstrap
+                    .option(ChannelOption.SO_BACKLOG, BACKLOG.get())
+                    .option(ChannelOption.SO_TIMEOUT, SERVER_SOCKET_TIMEOUT.get())
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.TCP_NODELAY, TCP_NODELAY.get());
+
+            if (epoll) {
+                serverBootstrap
+                        .channel(EpollServerSocketChannel.class)
+                        .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                        .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+                if (listeners > 1) {
+                    serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+                }
+                if (TCP_FASTOPEN_QUEUE.get() > 0) {
+                    serverBootstrap.option(EpollChannelOption.TCP_FASTOPEN, TCP_FASTOPEN_QUEUE.get());
+                }
             }
             else {
                 serverBootstrap.channel(NioServerSocketChannel.class);
             }
 
-            // Socket configuration.
-            serverBootstrap
-                    .option(ChannelOption.SO_BACKLOG, 128)
-                    .option(ChannelOption.SO_TIMEOUT, SERVER_SOCKET_TIMEOUT.get())
-                    .option(ChannelOption.SO_KEEPALIVE, true);
             serverBootstrap.childHandler(new ServerChannelInitializer());
             serverBootstrap.validate();
 
             // Bind and start to accept incoming connections.
-            ChannelFuture f = serverBootstrap.bind(port).sync();
+            List<Channel> serverChannels = new ArrayList<>(listeners);
+            for (int i = 0; i < listeners; i++) {
+                serverChannels.add(serverBootstrap.bind(port).sync().channel());
+            }
+            this.serverChannels = serverChannels;
+            LOG.info("Server listening with " + (epoll ? "native epoll" : "NIO") + " TCP transport. listeners=" + listeners);
 
-            // Wait until the server socket is closed.
-            f.channel().closeFuture().sync();
+            // Wait until the server sockets are closed.
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().sync();
+            }
         }
         catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             LOG.info("Main thread interrupted, so shutting down.");
         }
         finally {
-            serverGroup.stop();
+            stop();
         }
 
     }
 
+    /**
+     * Stop accepting connections, drain the open ones, and then shut everything down.
+     */
+    public synchronized void stop()
+    {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+
+        LOG.info("Stopping server");
+        for (Channel serverChannel : serverChannels) {
+            serverChannel.close().awaitUninterruptibly();
+        }
+        connectionManager.drain(DRAIN_TIMEOUT_MS.get());
+
+        assetWatcher.stop();
+        AccessLog.stop();
+        serverGroup.stop();
+        offload.shutdown();
+    }
+
     private class ServerChannelInitializer extends ChannelInitializer<Channel>
     {
         @Override
         protected void initChannel(Channel ch) throws Exception
         {
+            // The channel stops being writable once this much is waiting to go out to the socket. Set the low water mark
+            // to 0 first, so the marks are never crossed in between.
+            ch.config().setWriteBufferLowWaterMark(0);
+            ch.config().setWriteBufferHighWaterMark(WRITE_BUFFER_HIGH_WATER_MARK.get());
+            ch.config().setWriteBufferLowWaterMark(Math.min(WRITE_BUFFER_LOW_WATER_MARK.get(), WRITE_BUFFER_HIGH_WATER_MARK.get()));
+
             // Configure our pipeline of ChannelHandlerS.
             ChannelPipeline pipeline = ch.pipeline();
+            Http1Connection connection = new Http1Connection();
+            pipeline.addLast("flushConsolidator", new FlushConsolidator());
             pipeline.addLast("idleStateHandler", new IdleStateHandler(0, 0, SERVER_CONN_IDLE_TIMEOUT_SECS.get()));
-            pipeline.addLast("codec", new HttpServerCodec());
-            pipeline.addLast("inboundPoliteHttp", new InboundPoliteHTTPHandler());
-            pipeline.addLast("outboundPoliteHttp", new OutboundPoliteHTTPHandler());
-            pipeline.addLast("logger", nettyLogger);
-            pipeline.addLast(new AppHandler());
+            pipeline.addLast("connectionManager", connectionManager.newHandler());
+            pipeline.addLast("codec", new ServerCodec());
+            pipeline.addLast("inboundPoliteHttp", new InboundPoliteHTTPHandler(connection));
+            pipeline.addLast("outboundPoliteHttp", new OutboundPoliteHTTPHandler(connection));
+            pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());
+            pipeline.addLast(new AppHandler(router, connection));
+            Http2Pipeline.addTo(pipeline);
         }
     }
 
@@ -129,27 +216,43 @@ public class Server
                     LOG.error("Uncaught throwable", e);
                 }
             });
-
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(), "Chunking-ServerGroup-JVM-shutdown-hook"));
         }
 
-        private void initializeTransport()
+        /**
+         * @param listeners the number of listening sockets, each of which gets its own acceptor thread.
+         */
+        private void initializeTransport(boolean epoll, int listeners)
         {
-            SelectorProvider selectorProvider = SelectorProvider.provider();
-
-            // TODO - Use EpollEventLoopGroup instead for these.
-            NioEventLoopGroup inboundAcceptorGroup = new NioEventLoopGroup(
-                    INCOMING_ACCEPTOR_THREADS.get(),
-                    new CategorizedThreadFactory("ServerAcceptor"),
-                    selectorProvider);
-            NioEventLoopGroup inboundWorkerGroup = new NioEventLoopGroup(
-                    INCOMING_WORKER_THREADS.get(),
-                    new CategorizedThreadFactory("ServerWorker"),
-                    selectorProvider);
-            inboundWorkerGroup.setIoRatio(90);
-
-            this.clientToProxyBossPool = inboundAcceptorGroup;
-            this.clientToProxyWorkerPool = inboundWorkerGroup;
+            int acceptorThreads = Math.max(INCOMING_ACCEPTOR_THREADS.get(), listeners);
+
+            if (epoll) {
+                EpollEventLoopGroup inboundAcceptorGroup = new EpollEventLoopGroup(
+                        acceptorThreads,
+                        new CategorizedThreadFactory("ServerAcceptor"));
+                EpollEventLoopGroup inboundWorkerGroup = new EpollEventLoopGroup(
+                        INCOMING_WORKER_THREADS.get(),
+                        new CategorizedThreadFactory("ServerWorker"));
+                inboundWorkerGroup.setIoRatio(90);
+
+                this.clientToProxyBossPool = inboundAcceptorGroup;
+                this.clientToProxyWorkerPool = inboundWorkerGroup;
+            }
+            else {
+                SelectorProvider selectorProvider = SelectorProvider.provider();
+
+                NioEventLoopGroup inboundAcceptorGroup = new NioEventLoopGroup(
+                        acceptorThreads,
+                        new CategorizedThreadFactory("ServerAcceptor"),
+                        selectorProvider);
+                NioEventLoopGroup inboundWorkerGroup = new NioEventLoopGroup(
+                        INCOMING_WORKER_THREADS.get(),
+                        new CategorizedThreadFactory("ServerWorker"),
+                        selectorProvider);
+                inboundWorkerGroup.setIoRatio(90);
+
+                this.clientToProxyBossPool = inboundAcceptorGroup;
+                this.clientToProxyWorkerPool = inboundWorkerGroup;
+            }
         }
 
         synchronized private void stop()
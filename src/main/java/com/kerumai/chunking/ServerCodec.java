@@ -0,0 +1,43 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.CombinedChannelDuplexHandler;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+
+/**
+ * Netty's HttpServerCodec, except that the head of a response made from a {@link ResponseHead} is copied in already
+ * encoded, with only the response's own headers encoded as usual.
+ */
+public final class ServerCodec extends CombinedChannelDuplexHandler<HttpRequestDecoder, HttpResponseEncoder>
+        implements HttpServerUpgradeHandler.SourceCodec
+{
+    public ServerCodec()
+    {
+        super(new HttpRequestDecoder(), new Encoder());
+    }
+
+    @Override
+    public void upgradeFrom(ChannelHandlerContext ctx)
+    {
+        ctx.pipeline().remove(this);
+    }
+
+    private static class Encoder extends HttpResponseEncoder
+    {
+        @Override
+        protected void encodeInitialLine(ByteBuf buf, HttpResponse response) throws Exception
+        {
+            ResponseHead head = ResponseHead.of(response);
+            if (head != null) {
+                head.encodeTo(response, buf);
+            }
+            else {
+                super.encodeInitialLine(buf, response);
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.kerumai.chunking;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms for each route, and each response mode (chunked, or full with a Content-Length), for each of the
+ * points in a response that matter for time to first byte and first paint. All are measured from when the request
+ * started being read.
+ *
+ * Each event loop records into its own set of {@link LatencyHistogram}s, which are only merged when they're read, so
+ * recording is cheap and never contended.
+ *
+ * {@link Endpoint} serves them in Prometheus text format, along with the number of tasks waiting on each event loop,
+ * how much of the pooled allocator's memory is in use, and how many exchanges the {@link AccessLog} has recorded
+ * and dropped.
+ */
+public class ServerMetrics
+{
+    enum Phase
+    {
+        DECODE("chunking_request_decode_seconds", "Time to read and decode the request."),
+        HEAD("chunking_response_head_seconds", "Time to the response head being written."),
+        FIRST_CHUNK("chunking_first_chunk_seconds", "Time to the first chunk of the response body being flushed."),
+        LAST_CHUNK("chunking_last_chunk_seconds", "Time to the last chunk of the response body being flushed.");
+
+        private final String metricName;
+        private final String help;
+
+        Phase(String metricName, String help)
+        {
+            this.metricName = metricName;
+            this.help = help;
+        }
+    }
+
+    private static final String[] MODES = {"full", "chunked"};
+    private static final String[] BUCKET_BOUNDS_SECONDS = {
+            "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10"};
+
+    /** The recorders of all the event loops (or any other threads) that have recorded anything. */
+    private static final List<Recorder> RECORDERS = new CopyOnWriteArrayList<>();
+    private static final FastThreadLocal<Recorder> RECORDER = new FastThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue()
+        {
+            Recorder recorder = new Recorder();
+            RECORDERS.add(recorder);
+            return recorder;
+        }
+    };
+
+    /**
+     * Record the timings of a completed response. All are System.nanoTime() values.
+     */
+    static void record(String route, boolean chunked, long startNanos, long decodedNanos, long headNanos,
+                       long firstChunkNanos, long lastChunkNanos)
+    {
+        LatencyHistogram[] histograms = RECORDER.get().histograms(route);
+        int mode = chunked ? 1 : 0;
+        histograms[index(mode, Phase.DECODE)].record(micros(decodedNanos - startNanos));
+        histograms[index(mode, Phase.HEAD)].record(micros(headNanos - startNanos));
+        histograms[index(mode, Phase.FIRST_CHUNK)].record(micros(firstChunkNanos - startNanos));
+        histograms[index(mode, Phase.LAST_CHUNK)].record(micros(lastChunkNanos - startNanos));
+    }
+
+    private static int index(int mode, Phase phase)
+    {
+        return mode * Phase.values().length + phase.ordinal();
+    }
+
+    private static long micros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * One thread's histograms.
+     */
+    private static class Recorder
+    {
+        /** Only added to by the owning thread, but read by whichever thread serves the metrics. */
+        private final Map<String, LatencyHistogram[]> routes = new ConcurrentHashMap<>();
+
+        LatencyHistogram[] histograms(String route)
+        {
+            LatencyHistogram[] histograms = routes.get(route);
+            if (histograms == null) {
+                histograms = new LatencyHistogram[MODES.length * Phase.values().length];
+                for (int i = 0; i < histograms.length; i++) {
+                    histograms[i] = new LatencyHistogram();
+                }
+                routes.put(route, histograms);
+            }
+            return histograms;
+        }
+    }
+
+    /**
+     * Serves the metrics, in Prometheus text format.
+     */
+    public static class Endpoint implements RouteHandler
+    {
+        private final EventLoopGroup eventLoops;
+
+        public Endpoint(EventLoopGroup eventLoops)
+        {
+            this.eventLoops = eventLoops;
+        }
+
+        @Override
+        public void handle(ChannelHandlerContext ctx, HttpExchange exchange)
+        {
+            StringBuilder sb = new StringBuilder(16 * 1024);
+            appendHistograms(sb);
+            appendEventLoops(sb);
+            appendAllocator(sb, ctx.alloc());
+            appendAccessLog(sb);
+
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer(sb, StandardCharsets.UTF_8));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+            exchange.writeAndFlush(response);
+        }
+
+        private void appendHistograms(StringBuilder sb)
+        {
+            // Merge each route's histograms across all the event loops. Sorted so the output is stable.
+            Map<String, long[][]> merged = new TreeMap<>();
+            Map<String, long[]> sums = new TreeMap<>();
+            for (Recorder recorder : RECORDERS) {
+                for (Map.Entry<String, LatencyHistogram[]> route : recorder.routes.entrySet()) {
+                    LatencyHistogram[] histograms = route.getValue();
+                    long[][] counts = merged.computeIfAbsent(route.getKey(), r -> new long[histograms.length][LatencyHistogram.BUCKETS]);
+                    long[] sum = sums.computeIfAbsent(route.getKey(), r -> new long[histograms.length]);
+                    for (int i = 0; i < histograms.length; i++) {
+                        sum[i] += histograms[i].addTo(counts[i]);
+                    }
+                }
+            }
+
+            for (Phase phase : Phase.values()) {
+                sb.append("# HELP ").append(phase.metricName).append(' ').append(phase.help).append('\n');
+                sb.append("# TYPE ").append(phase.metricName).append(" histogram\n");
+
+                for (Map.Entry<String, long[][]> route : merged.entrySet()) {
+                    for (int mode = 0; mode < MODES.length; mode++) {
+                        int index = index(mode, phase);
+                        long[] counts = route.getValue()[index];
+                        if (isEmpty(counts)) {
+                            continue;
+                        }
+                        String labels = "route=\"" + escape(route.getKey()) + "\",mode=\"" + MODES[mode] + "\"";
+
+                        long cumulative = 0;
+                        int bucket = 0;
+                        for (String bound : BUCKET_BOUNDS_SECONDS) {
+                            long boundMicros = new BigDecimal(bound).movePointRight(6).longValue();
+                            while (bucket < counts.length && LatencyHistogram.bucketUpperBound(bucket) <= boundMicros + 1) {
+                                cumulative += counts[bucket++];
+                            }
+                            sb.append(phase.metricName).append("_bucket{").append(labels)
+                                    .append(",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+                        }
+                        while (bucket < counts.length) {
+                            cumulative += counts[bucket++];
+                        }
+                        sb.append(phase.metricName).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                                .append(cumulative).append('\n');
+                        sb.append(phase.metricName).append("_sum{").append(labels).append("} ")
+                                .append(sums.get(route.getKey())[index] / 1e6).append('\n');
+                        sb.append(phase.metricName).append("_count{").append(labels).append("} ")
+                                .append(cumulative).append('\n');
+                    }
+                }
+            }
+        }
+
+        private void appendEventLoops(StringBuilder sb)
+        {
+            sb.append("# HELP chunking_event_loop_pending_tasks Tasks waiting to be run on each event loop.\n");
+            sb.append("# TYPE chunking_event_loop_pending_tasks gauge\n");
+            int i = 0;
+            for (EventExecutor eventLoop : eventLoops) {
+                if (eventLoop instanceof SingleThreadEventExecutor) {
+                    sb.append("chunking_event_loop_pending_tasks{loop=\"").append(i).append("\"} ")
+                            .append(((SingleThreadEventExecutor) eventLoop).pendingTasks()).append('\n');
+                }
+                i++;
+            }
+        }
+
+        private void appendAllocator(StringBuilder sb, ByteBufAllocator alloc)
+        {
+            if (!(alloc instanceof PooledByteBufAllocator)) {
+                return;
+            }
+            PooledByteBufAllocator pooled = (PooledByteBufAllocator) alloc;
+            long[] heap = arenaUsage(pooled.heapArenas());
+            long[] direct = arenaUsage(pooled.directArenas());
+
+            appendGauge(sb, "chunking_allocator_chunk_bytes", "Memory held in chunks by the pooled allocator.", heap[0], direct[0]);
+            appendGauge(sb, "chunking_allocator_used_bytes", "Memory in the pooled allocator's chunks that's in use.", heap[1], direct[1]);
+            appendGauge(sb, "chunking_allocator_active_allocations", "Pooled buffers allocated and not yet released.", heap[2], direct[2]);
+        }
+
+        private static void appendAccessLog(StringBuilder sb)
+        {
+            sb.append("# HELP chunking_access_log_records_total Exchanges recorded in the access log.\n");
+            sb.append("# TYPE chunking_access_log_records_total counter\n");
+            sb.append("chunking_access_log_records_total ").append(AccessLog.recorded()).append('\n');
+            sb.append("# HELP chunking_access_log_dropped_total Exchanges dropped from the access log as it was full.\n");
+            sb.append("# TYPE chunking_access_log_dropped_total counter\n");
+            sb.append("chunking_access_log_dropped_total ").append(AccessLog.dropped()).append('\n');
+        }
+
+        private static void appendGauge(StringBuilder sb, String name, String help, long heap, long direct)
+        {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append("{type=\"heap\"} ").append(heap).append('\n');
+            sb.append(name).append("{type=\"direct\"} ").append(direct).append('\n');
+        }
+
+        /**
+         * @return the bytes held in chunks, the bytes of those in use, and the number of active allocations.
+         */
+        private static long[] arenaUsage(List<PoolArenaMetric> arenas)
+        {
+            long[] usage = new long[3];
+            for (PoolArenaMetric arena : arenas) {
+                // The arena's chunk lists are only safe to walk while holding its lock.
+                synchronized (arena) {
+                    for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                        for (PoolChunkMetric chunk : chunkList) {
+                            usage[0] += chunk.chunkSize();
+                            usage[1] += chunk.chunkSize() - chunk.freeBytes();
+                        }
+                    }
+                }
+                usage[2] += arena.numActiveAllocations();
+            }
+            return usage;
+        }
+
+        private static boolean isEmpty(long[] counts)
+        {
+            for (long count : counts) {
+                if (count != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String escape(String labelValue)
+        {
+            return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+}
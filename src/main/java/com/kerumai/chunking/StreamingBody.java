@@ -0,0 +1,128 @@
+package com.kerumai.chunking;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.codec.http.DefaultHttpContent;
+
+/**
+ * A response body that's produced a piece at a time, eg. a page as its fragments arrive, and is written no faster than
+ * the client reads it, so that a slow client can't make us buffer an unbounded amount of it.
+ *
+ * Before producing more the producer should check {@link #isWritable()}, and if it isn't, pause until the callback
+ * given to {@link #whenWritable(Runnable)} is run. The body stops being writable when the channel does (its outbound
+ * buffer is past the channel's high water mark), or when more of it has been written than has got to the socket, past
+ * the high water mark for its route class. That includes anything held back behind earlier pipelined responses. It's
+ * writable again once the channel is, and this body is back under the low water mark.
+ *
+ * The water marks for a route class are server.backpressure.[class].high.bytes and .low.bytes, which default to
+ * server.backpressure.high.bytes and .low.bytes.
+ */
+public class StreamingBody
+{
+    private static final DynamicIntProperty DEFAULT_HIGH_WATER_MARK = new DynamicIntProperty("server.backpressure.high.bytes", 64 * 1024);
+    private static final DynamicIntProperty DEFAULT_LOW_WATER_MARK = new DynamicIntProperty("server.backpressure.low.bytes", 32 * 1024);
+
+    /** The route class of pages, see {@link PageComposer}. */
+    public static final String PAGES = "pages";
+
+    private final HttpExchange exchange;
+    private final Channel channel;
+    private final AppHandler appHandler;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+
+    private long unwrittenBytes = 0;
+    private boolean overHighWaterMark = false;
+    private Runnable resume = null;
+
+    public StreamingBody(HttpExchange exchange, String routeClass)
+    {
+        this.exchange = exchange;
+        this.channel = exchange.channel();
+        ChannelHandler handler = exchange.handlerContext().handler();
+        this.appHandler = handler instanceof AppHandler ? (AppHandler) handler : null;
+
+        DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+        String prefix = "server.backpressure." + routeClass;
+        this.highWaterMark = properties.getIntProperty(prefix + ".high.bytes", DEFAULT_HIGH_WATER_MARK.get()).get();
+        this.lowWaterMark = Math.min(highWaterMark,
+                properties.getIntProperty(prefix + ".low.bytes", DEFAULT_LOW_WATER_MARK.get()).get());
+    }
+
+    public boolean isWritable()
+    {
+        return !overHighWaterMark && channel.isWritable();
+    }
+
+    /**
+     * Write the next chunk of the body. Can be written whether or not the body is writable, eg. a last few bytes to
+     * close it off, but the producer shouldn't go on to produce much more.
+     */
+    public ChannelFuture write(ByteBuf chunk)
+    {
+        int bytes = chunk.readableBytes();
+        unwrittenBytes += bytes;
+        if (unwrittenBytes > highWaterMark) {
+            overHighWaterMark = true;
+        }
+
+        ChannelFuture future = exchange.write(new DefaultHttpContent(chunk));
+        future.addListener(f -> written(bytes));
+        return future;
+    }
+
+    /**
+     * Run the task once the body is writable again, in place of any task already waiting. If it's writable now, the
+     * task is run later on the event loop rather than straight away.
+     */
+    public void whenWritable(Runnable task)
+    {
+        resume = task;
+        if (isWritable()) {
+            channel.eventLoop().execute(this::resumeIfWritable);
+        }
+        else {
+            resumeIfWritable();
+        }
+    }
+
+    private void written(int bytes)
+    {
+        unwrittenBytes -= bytes;
+        if (overHighWaterMark && unwrittenBytes <= lowWaterMark) {
+            overHighWaterMark = false;
+            if (resume != null) {
+                // Not from within whatever write or flush this completed in.
+                channel.eventLoop().execute(this::resumeIfWritable);
+            }
+        }
+    }
+
+    /**
+     * Called by the {@link AppHandler} when the channel's writability has changed.
+     */
+    void channelWritabilityChanged()
+    {
+        resumeIfWritable();
+    }
+
+    private void resumeIfWritable()
+    {
+        if (resume == null) {
+            return;
+        }
+        if (isWritable()) {
+            Runnable task = resume;
+            resume = null;
+            task.run();
+        }
+        else if (!channel.isWritable() && appHandler != null) {
+            // Hear about it when the channel is writable again.
+            appHandler.awaitWritability(this);
+        }
+    }
+}
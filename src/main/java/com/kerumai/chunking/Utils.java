@@ -11,10 +11,29 @@ import io.netty.handler.codec.http.*;
 public class Utils
 {
     public static void sendDefaultErrorResponse(ChannelHandlerContext ctx)
+    {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        ctx.writeAndFlush(response);
+    }
+
+    public static void sendDefaultErrorResponse(HttpExchange exchange)
     {
         HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR);
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
-        ctx.write(response);
-        ctx.writeAndFlush(new DefaultLastHttpContent());
+        exchange.write(response);
+        exchange.writeAndFlush(new DefaultLastHttpContent());
+    }
+
+    /**
+     * Turn the request away because we're overloaded, without closing the connection.
+     */
+    public static void sendServiceUnavailable(HttpExchange exchange)
+    {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        response.headers().set(HttpHeaderNames.RETRY_AFTER, 1);
+        exchange.write(response);
+        exchange.writeAndFlush(new DefaultLastHttpContent());
     }
 }